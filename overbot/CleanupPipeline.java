@@ -0,0 +1,440 @@
+package overbot;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpRetryException;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.login.CredentialException;
+import javax.security.auth.login.CredentialExpiredException;
+import javax.security.auth.login.CredentialNotFoundException;
+import javax.security.auth.login.LoginException;
+
+import shared.CategoryGraphStore;
+import shared.CleanupRules;
+import shared.Wiki;
+import shared.WikiPage;
+
+/**
+ * Runs the cleanup of all files as a pipeline of stages which are connected by
+ * bounded queues: One thread reads the files batch by batch (titles, texts,
+ * protection and categories with one request per batch), several cleaners
+ * work on the fetched pages and put the resulting edits into the durable edit
+ * queue, and the calling thread is the only one to write to the wiki. Reading
+ * and cleaning go on while the writer waits for the edit throttle of the
+ * wiki. The outcome of every page goes to the crawl journal.
+ */
+class CleanupPipeline {
+	// Marker which tells the next stage that no more work will follow
+	private static final WikiPage END_OF_PAGES = new WikiPage();
+	// Categories with new parents until the category graph is saved
+	private static final int GRAPH_SAVE_INTERVAL = 10000;
+	// Failed edits in a row until the writer assumes the wiki is down
+	private static final int MAX_FAILED_EDITS = 10;
+
+	private final Wiki wiki;
+	private final CrawlJournal journal;
+	private final EditQueue edits;
+	private final int cleaners;
+	private final int batchSize;
+
+	private final BlockingQueue<WikiPage> fetchedPages;
+
+	private final AtomicInteger activeCleaners;
+	private final AtomicLong crawledCounter = new AtomicLong();
+	private final AtomicLong deletedCounter = new AtomicLong();
+	private volatile boolean aborted = false;
+	// set by stop(), the writer finishes the current page only
+	private volatile boolean stopping = false;
+	// whether the reader got to the last file
+	private volatile boolean complete = false;
+	// the reader and the cleaners, set once all are created
+	private volatile Thread[] threads;
+
+	/**
+	 * Creates a new pipeline for the given wiki
+	 *
+	 * @param wiki
+	 *            Target wiki
+	 * @param journal
+	 *            The journal to record the progress in
+	 * @param edits
+	 *            The queue of the edits to be written
+	 * @param cleaners
+	 *            The number of threads which clean up the fetched pages
+	 * @param batchSize
+	 *            The number of files requested from the wiki at once
+	 */
+	CleanupPipeline(Wiki wiki, CrawlJournal journal, EditQueue edits,
+			int cleaners, int batchSize) {
+		this.wiki = wiki;
+		this.journal = journal;
+		this.edits = edits;
+		this.cleaners = cleaners;
+		this.batchSize = batchSize;
+		this.fetchedPages = new ArrayBlockingQueue<WikiPage>(2 * batchSize);
+		this.activeCleaners = new AtomicInteger(cleaners);
+	}
+
+	/**
+	 * Do cleanup for all files of the wiki starting at the given key, skipping
+	 * those which are done according to the journal. The edits left in the
+	 * queue by a former run are written first. Returns when all files are
+	 * written, an error stops the writer or stop() was called.
+	 *
+	 * @param continueKey
+	 *            The key to start with
+	 * @throws IOException
+	 * @throws LoginException
+	 */
+	void run(final String continueKey) throws IOException, LoginException {
+		dropStaleEdits();
+		Thread[] stages = new Thread[1 + cleaners];
+		stages[0] = new Thread(new Runnable() {
+			public void run() {
+				readPages(continueKey.replace(' ', '_'));
+			}
+		}, "reader");
+		for (int c = 1; c <= cleaners; ++c)
+			stages[c] = new Thread(new Runnable() {
+				public void run() {
+					cleanupPages();
+				}
+			}, "cleaner-" + c);
+		threads = stages;
+		for (Thread t : stages)
+			t.start();
+		try {
+			writePages();
+		} finally {
+			abort();
+			for (Thread t : stages) {
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		if (complete && !stopping) {
+			journal.finish();
+			System.out.println("All batches done. Exiting.");
+		} else
+			System.out.println("Stopped. (Continue from "
+					+ journal.getPosition() + ")");
+	}
+
+	/**
+	 * Removes the queued edits of a former run whose page was changed since
+	 * its text was fetched, they would overwrite or be merged with the newer
+	 * revision
+	 *
+	 * @throws IOException
+	 */
+	private void dropStaleEdits() throws IOException {
+		List<EditQueue.Edit> queued = edits.getPending();
+		if (queued.isEmpty())
+			return;
+		System.out.println("Checking " + queued.size()
+				+ " queued edits of the last run.");
+		String[] titles = new String[queued.size()];
+		for (int e = 0; e < titles.length; ++e)
+			titles[e] = queued.get(e).title;
+		@SuppressWarnings("unchecked")
+		Map<String, Object>[] info = wiki.getPageInfo(titles);
+		for (int e = 0; e < titles.length; ++e) {
+			EditQueue.Edit edit = queued.get(e);
+			if (edit.baseRevid == 0
+					|| edit.baseRevid == (Long) info[e].get("lastrevid"))
+				continue;
+			System.out.println(edit.title
+					+ "\nChanged since the cleanup: Dropping the edit...");
+			edits.done(edit);
+			journal.record(edit.title, CrawlJournal.Outcome.STALE);
+		}
+	}
+
+	/**
+	 * Drains the pipeline: No more files are read or cleaned up, the writer
+	 * finishes the page it is working on and run() returns. The pages in
+	 * flight are read again by the next run, the queued edits are kept.
+	 */
+	void stop() {
+		stopping = true;
+		aborted = true;
+		Thread[] stages = threads;
+		if (stages == null)
+			return; // run() sees aborted before it starts any
+		for (Thread t : stages)
+			t.interrupt();
+	}
+
+	/**
+	 * Stops all stages as soon as possible
+	 */
+	private void abort() {
+		aborted = true;
+		for (Thread t : threads)
+			t.interrupt();
+	}
+
+	/**
+	 * First stage: Reads all files batch by batch and passes on all pages
+	 * which are not protected
+	 *
+	 * @param continueKey
+	 *            The key to start with
+	 */
+	private void readPages(String continueKey) {
+		try {
+			while (!aborted) {
+				Object[] nextBatchObjects = wiki.listAllFilesWithContent(
+						continueKey, batchSize);
+				@SuppressWarnings("unchecked")
+				Map<String, Object>[] nextBatch = (Map<String, Object>[]) nextBatchObjects[1];
+				continueKey = (String) nextBatchObjects[0];
+				crawledCounter.addAndGet(nextBatch.length);
+				for (Map<String, Object> page : nextBatch) {
+					String title = (String) page.get("title");
+					if (journal.isDone(title))
+						continue; // by a former run
+					if (!(Boolean) page.get("exists")) {
+						System.out.println(title
+								+ "\nFile probably deleted: "
+								+ "Ignore and continue with next one...");
+						deletedCounter.incrementAndGet();
+						journal.record(title, CrawlJournal.Outcome.DELETED);
+						continue;
+					}
+					if ((page.get("protection")).toString().contains(
+							"edit=sysop")) {
+						journal.record(title, CrawlJournal.Outcome.PROTECTED);
+						continue;
+					}
+					journal.started(title);
+					fetchedPages.put(new WikiPage(wiki, page));
+				}
+				if (continueKey.length() == 0) {
+					complete = true;
+					break; // No next batch available
+				}
+				journal.batchDone(continueKey);
+				CleanupRules.reloadIfModified();
+				saveCategoryGraph();
+				System.out
+						.println("Requesting next batch of files to work with. (Continue from "
+								+ continueKey + ")\n");
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Could not read the files. (Continue from "
+					+ continueKey + ")");
+		} catch (InterruptedException e) {
+			// aborted
+		} finally {
+			// also after an unexpected error, so that the cleaners and the
+			// writer come to an end
+			try {
+				for (int c = 0; c < cleaners; ++c)
+					fetchedPages.put(END_OF_PAGES);
+			} catch (InterruptedException e) {
+				// aborted anyway
+			}
+		}
+	}
+
+	/**
+	 * Saves the category graph store once enough new categories were found,
+	 * so that a crash does not lose all of them
+	 */
+	private void saveCategoryGraph() {
+		CategoryGraphStore store = WikiPage.getCategoryGraphStore();
+		if (store == null || store.getChangeCount() < GRAPH_SAVE_INTERVAL)
+			return;
+		try {
+			store.save();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Could not save the category graph.");
+		}
+	}
+
+	/**
+	 * Second stage: Cleans up the fetched pages and queues their edits
+	 */
+	private void cleanupPages() {
+		try {
+			while (true) {
+				WikiPage target = fetchedPages.take();
+				if (target == END_OF_PAGES)
+					break;
+				try {
+					target.cleanupWikitext();
+					target.cleanupOvercat(1, true);
+					target.cleanupUndercat();
+					if (target.getEditSummary().length() == 0) {
+						journal.record(target.getName(),
+								CrawlJournal.Outcome.UNCHANGED);
+						continue;
+					}
+					edits.put(new EditQueue.Edit(target.getName(), target
+							.getBaseRevid(), target.getBaseTime(), "Bot: "
+							+ target.getEditSummary(), target.getPlainText()));
+					journal.record(target.getName(),
+							CrawlJournal.Outcome.QUEUED);
+				} catch (IOException e) {
+					// interrupted by abort() or stop(): the page stays in
+					// flight and is read again by the next run
+					if (aborted || e instanceof InterruptedIOException)
+						break;
+					e.printStackTrace();
+					recordError(target);
+				} catch (IllegalStateException e) {
+					// a cleanup rule which does not settle on this page
+					e.printStackTrace();
+					recordError(target);
+				}
+			}
+		} catch (InterruptedException e) {
+			// aborted
+		} finally {
+			// the writer stops once no cleaner is left, even if one died
+			activeCleaners.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Records that a page could not be cleaned up, the cleaner goes on with
+	 * the next one
+	 *
+	 * @param target
+	 *            The page
+	 */
+	private void recordError(WikiPage target) {
+		System.out.println(target.getName()
+				+ "\nCould not clean up: Continue with next one...");
+		try {
+			journal.record(target.getName(), CrawlJournal.Outcome.ERROR);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Last stage: Writes the queued edits one after another at the pace of the
+	 * edit throttle. An edit the wiki refuses for its page (deleted, changed
+	 * or protected meanwhile, or an API error) is dropped and recorded, the
+	 * page is cleaned up again by a later run. Errors of the session (blocked, logged out, throttled,
+	 * interrupted) or many failed edits in a row stop the writer, the edit
+	 * stays in the queue for the next run.
+	 *
+	 * @throws IOException
+	 * @throws LoginException
+	 */
+	private void writePages() throws IOException, LoginException {
+		long startTime = System.currentTimeMillis();
+		long written = 0;
+		int failed = 0;
+		try {
+			while (!stopping) {
+				// the writer is never interrupted, so it syncs the journal
+				journal.syncIfDue();
+				EditQueue.Edit edit = edits.poll(1, TimeUnit.SECONDS);
+				if (edit == null) {
+					// the queue is only empty for good once all cleaners are
+					// done
+					if (activeCleaners.get() == 0 && edits.size() == 0)
+						break;
+					continue;
+				}
+				CrawlJournal.Outcome outcome = CrawlJournal.Outcome.EDITED;
+				try {
+					wiki.edit(edit.title, edit.text, edit.summary,
+							wiki.isMarkMinor(), wiki.isMarkBot(), -2,
+							edit.baseRevid, edit.baseTime);
+					failed = 0;
+				} catch (FileNotFoundException e) {
+					System.out.println(edit.title
+							+ "\nDeleted meanwhile: Dropping the edit...");
+					outcome = CrawlJournal.Outcome.DELETED;
+					deletedCounter.incrementAndGet();
+				} catch (ConcurrentModificationException e) {
+					System.out.println(edit.title
+							+ "\nChanged since the cleanup: Dropping the edit...");
+					outcome = CrawlJournal.Outcome.STALE;
+				} catch (CredentialException e) {
+					if (e instanceof CredentialExpiredException
+							|| e instanceof CredentialNotFoundException)
+						throw e;
+					System.out.println(edit.title
+							+ "\nProtected meanwhile: Dropping the edit...");
+					outcome = CrawlJournal.Outcome.PROTECTED;
+				} catch (IOException e) {
+					if (e instanceof InterruptedIOException
+							|| e instanceof HttpRetryException
+							|| ++failed >= MAX_FAILED_EDITS)
+						throw e;
+					e.printStackTrace();
+					System.out.println(edit.title
+							+ "\nCould not edit: Dropping the edit...");
+					outcome = CrawlJournal.Outcome.ERROR;
+				}
+				edits.done(edit);
+				journal.record(edit.title, outcome);
+				if (++written % batchSize == 0)
+					printStatus(startTime);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		printStatus(startTime);
+	}
+
+	/**
+	 * Print the number of crawled files and the average time per file
+	 *
+	 * @param startTime
+	 *            When the crawl started
+	 */
+	private void printStatus(long startTime) {
+		long total = crawledCounter.get();
+		long deleted = deletedCounter.get();
+		long runtime = (System.currentTimeMillis() - startTime) / 1000;
+		long days = runtime / (60 * 60 * 24);
+		long hours = (runtime % (60 * 60 * 24)) / (60 * 60);
+		long minutes = (runtime % (60 * 60)) / 60;
+		long seconds = runtime % 60;
+		float avg = ((float) runtime / (float) total);
+		System.out.println("\nStatus:\n"
+				+ total
+				+ " files crawled in "
+				+ days
+				+ " days "
+				+ hours
+				+ " hours "
+				+ minutes
+				+ " minutes "
+				+ seconds
+				+ " seconds. Thus it took "
+				+ (total == 0 ? "Inf" : avg)
+				+ " seconds per file."
+				+ (deleted > 0 ? " [" + deleted + " deleted files encountered]"
+						: "") + " " + edits.size() + " edits queued.\n");
+		HashMap<String, Long> cache = wiki.getCategoryCacheStatistics();
+		if (cache != null)
+			System.out.println("Category cache: " + cache.get("hits")
+					+ " hits, " + cache.get("misses") + " misses ("
+					+ cache.get("expired") + " expired), " + cache.get("size")
+					+ " categories cached\n");
+	}
+}
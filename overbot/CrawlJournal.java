@@ -0,0 +1,304 @@
+package overbot;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An append-only journal of the crawl: the position to continue from and the
+ * outcome of every page handled beyond it. A restarted bot resumes at the
+ * position and skips the pages which already have an outcome, so no page is
+ * lost or handled twice after a crash.
+ * <p>
+ * The journal is a text file (UTF-8) of the lines
+ * <pre>
+ * position	key     all pages before the key are done
+ * outcome	title   e.g. "edited	File:A.jpg"
+ * </pre>
+ * where the key is a title without namespace prefix and with underscores,
+ * as expected by the gapcontinue parameter of the wiki. The position is the
+ * oldest page still in flight, so pages finished out of order are kept as
+ * outcomes until it passes them. An error is recorded but does not count as
+ * done, so a restarted bot tries the page again unless the position passed
+ * it. Lines are synced to disk in batches by syncIfDue(), which only the
+ * writer calls: forcing the file on an interrupted thread would close it. A
+ * line cut off by a crash is ignored. The file is compacted when opened.
+ */
+class CrawlJournal {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String POSITION = "position";
+	// sync at least after so many lines or milliseconds
+	private static final int SYNC_LINES = 100;
+	private static final long SYNC_INTERVAL = 1000;
+
+	/**
+	 * What happened to a page
+	 */
+	enum Outcome {
+		EDITED, QUEUED, UNCHANGED, PROTECTED, DELETED, STALE, ERROR;
+
+		private final String label = name().toLowerCase();
+	}
+
+	// the order of the titles in the wiki (binary UTF-8, i.e. code points)
+	private static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+		public int compare(String a, String b) {
+			int i = 0;
+			int j = 0;
+			while (i < a.length() && j < b.length()) {
+				int ca = a.codePointAt(i);
+				int cb = b.codePointAt(j);
+				if (ca != cb)
+					return ca < cb ? -1 : 1;
+				i += Character.charCount(ca);
+				j += Character.charCount(cb);
+			}
+			return (a.length() - i) - (b.length() - j);
+		}
+	};
+
+	private final File file;
+	private final FileOutputStream stream;
+	private Writer out;
+	// the key the last batch was continued to, used while nothing is in
+	// flight
+	private String batchKey;
+	// the position last written to the journal
+	private String writtenPosition;
+	// keys of the pages handed on but without outcome
+	private final TreeSet<String> inFlight = new TreeSet<String>(KEY_ORDER);
+	// journal lines of the pages done beyond the position, by key
+	private final TreeMap<String, String> done = new TreeMap<String, String>(
+			KEY_ORDER);
+	private int unsynced = 0;
+	private long lastSync = System.currentTimeMillis();
+
+	/**
+	 * Opens the journal, reading the state of the former runs if the file
+	 * exists
+	 *
+	 * @param file
+	 *            The journal file (need not exist yet)
+	 * @throws IOException
+	 *             If the journal cannot be read or written
+	 */
+	CrawlJournal(File file) throws IOException {
+		this.file = file;
+		batchKey = "";
+		if (file.isFile())
+			load();
+		writtenPosition = batchKey;
+		compact();
+		stream = new FileOutputStream(file, true);
+		out = new BufferedWriter(new OutputStreamWriter(stream, UTF8),
+				1 << 16);
+	}
+
+	/**
+	 * @return The key to continue the crawl from ("" = from the start)
+	 */
+	synchronized String getPosition() {
+		return batchKey;
+	}
+
+	/**
+	 * @return The number of pages beyond the position which are done already
+	 */
+	synchronized int getDoneCount() {
+		return done.size();
+	}
+
+	/**
+	 * @param title
+	 *            The title of a page (with namespace prefix)
+	 * @return Whether the page already has an outcome other than an error
+	 */
+	synchronized boolean isDone(String title) {
+		return done.containsKey(toKey(title));
+	}
+
+	/**
+	 * Notes that a page was handed on to be cleaned up and written
+	 *
+	 * @param title
+	 *            The title of the page (with namespace prefix)
+	 */
+	synchronized void started(String title) {
+		inFlight.add(toKey(title));
+	}
+
+	/**
+	 * Notes that all pages of a batch were handed on or recorded
+	 *
+	 * @param nextKey
+	 *            The key the next batch starts at
+	 */
+	synchronized void batchDone(String nextKey) {
+		batchKey = nextKey;
+	}
+
+	/**
+	 * Records the outcome of a page
+	 *
+	 * @param title
+	 *            The title of the page (with namespace prefix)
+	 * @param outcome
+	 *            What happened to it
+	 * @throws IOException
+	 *             If the journal cannot be written
+	 */
+	synchronized void record(String title, Outcome outcome) throws IOException {
+		String key = toKey(title);
+		String line = outcome.label + "\t" + title + "\n";
+		inFlight.remove(key);
+		if (outcome == Outcome.ERROR)
+			done.remove(key);
+		else
+			done.put(key, line);
+		out.write(line);
+		++unsynced;
+	}
+
+	/**
+	 * Writes the position and forces the lines to disk if enough of them or
+	 * enough time passed since the last sync. Must not be called on a thread
+	 * which may be interrupted.
+	 *
+	 * @throws IOException
+	 *             If the journal cannot be written
+	 */
+	synchronized void syncIfDue() throws IOException {
+		if (unsynced >= SYNC_LINES
+				|| System.currentTimeMillis() - lastSync >= SYNC_INTERVAL)
+			sync();
+	}
+
+	/**
+	 * Records that the whole wiki was crawled, so the next run starts from
+	 * the beginning again
+	 *
+	 * @throws IOException
+	 *             If the journal cannot be written
+	 */
+	synchronized void finish() throws IOException {
+		inFlight.clear();
+		done.clear();
+		batchKey = "";
+		out.write(POSITION + "\t\n");
+		writtenPosition = batchKey;
+		sync();
+	}
+
+	/**
+	 * Writes the position, syncs and closes the journal
+	 *
+	 * @throws IOException
+	 *             If the journal cannot be written
+	 */
+	synchronized void close() throws IOException {
+		if (out == null)
+			return;
+		try {
+			sync();
+		} finally {
+			out.close();
+			out = null;
+		}
+	}
+
+	/**
+	 * Writes the current position if it moved and forces all lines to disk
+	 */
+	private void sync() throws IOException {
+		String position = inFlight.isEmpty() ? batchKey : inFlight.first();
+		if (!position.equals(writtenPosition)) {
+			out.write(POSITION + "\t" + position + "\n");
+			writtenPosition = position;
+			// outcomes before the position are not needed any more
+			done.headMap(position).clear();
+		}
+		out.flush();
+		stream.getChannel().force(false);
+		unsynced = 0;
+		lastSync = System.currentTimeMillis();
+	}
+
+	/**
+	 * Replays the journal file
+	 */
+	private void load() throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), UTF8), 1 << 16);
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab < 0)
+					continue; // cut off
+				String type = line.substring(0, tab);
+				String value = line.substring(tab + 1);
+				if (type.equals(POSITION)) {
+					batchKey = value;
+					if (value.isEmpty())
+						done.clear(); // finished crawl
+					else
+						done.headMap(value).clear();
+				} else if (type.equals(Outcome.ERROR.label))
+					done.remove(toKey(value));
+				else if (isOutcome(type))
+					done.put(toKey(value), line + "\n");
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Replaces the journal file by one with only the position and the
+	 * outcomes beyond it
+	 */
+	private void compact() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream tempStream = new FileOutputStream(temp);
+		Writer tempOut = new BufferedWriter(new OutputStreamWriter(tempStream,
+				UTF8), 1 << 16);
+		try {
+			tempOut.write(POSITION + "\t" + batchKey + "\n");
+			for (String line : done.values())
+				tempOut.write(line);
+			tempOut.flush();
+			tempStream.getChannel().force(false);
+		} finally {
+			tempOut.close();
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static boolean isOutcome(String type) {
+		for (Outcome outcome : Outcome.values())
+			if (outcome.label.equals(type))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return The title without namespace prefix and with underscores
+	 */
+	private static String toKey(String title) {
+		return title.substring(title.indexOf(':') + 1).replace(' ', '_');
+	}
+}
@@ -0,0 +1,228 @@
+package overbot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A durable queue of computed edits. Each edit is kept in a file of its own in
+ * the queue directory until it is written to the wiki, so the cleanups
+ * computed before a restart (or while the writer waits for the throttle) are
+ * not lost. The edits are taken in the order they were put.
+ * <p>
+ * The file of an edit is written to a temporary file, synced and then renamed,
+ * so it is either complete or missing after a crash. The layout (big-endian)
+ * is
+ * <pre>
+ * int magic, int version, UTF title, long base revision id (0 = unknown),
+ * long base timestamp in ms (0 = unknown), UTF summary,
+ * int length, UTF-8 bytes of the text
+ * </pre>
+ */
+class EditQueue {
+	private static final int MAGIC = 0x59434551; // "YCEQ"
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".edit";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * An edit computed for a page
+	 */
+	static class Edit {
+		final String title;
+		final long baseRevid;
+		final Calendar baseTime;
+		final String summary;
+		final String text;
+		private File file;
+
+		Edit(String title, long baseRevid, Calendar baseTime, String summary,
+				String text) {
+			this.title = title;
+			this.baseRevid = baseRevid;
+			this.baseTime = baseTime;
+			this.summary = summary;
+			this.text = text;
+		}
+	}
+
+	private final File directory;
+	private final int capacity;
+	// edits not taken yet, oldest first
+	private final ArrayDeque<Edit> pending = new ArrayDeque<Edit>();
+	// edits on disk, i.e. pending and taken but not done
+	private int count = 0;
+	private long sequence = 0;
+
+	/**
+	 * Opens the queue, reading the edits left by former runs
+	 *
+	 * @param directory
+	 *            The queue directory (created if needed)
+	 * @param capacity
+	 *            How many edits may wait before put() blocks
+	 * @throws IOException
+	 *             If the directory cannot be read
+	 */
+	EditQueue(File directory, int capacity) throws IOException {
+		this.directory = directory;
+		this.capacity = capacity;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory);
+		File[] files = directory.listFiles();
+		Arrays.sort(files);
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.endsWith(SUFFIX)) {
+				Files.delete(file.toPath()); // cut off by a crash
+				continue;
+			}
+			Edit edit = read(file);
+			edit.file = file;
+			pending.add(edit);
+			sequence = Math.max(sequence, Long.parseLong(name.substring(0,
+					name.length() - SUFFIX.length())) + 1);
+		}
+		count = pending.size();
+	}
+
+	/**
+	 * @return The number of edits not done yet
+	 */
+	synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * @return The edits not taken yet, oldest first
+	 */
+	synchronized List<Edit> getPending() {
+		return new ArrayList<Edit>(pending);
+	}
+
+	/**
+	 * Stores an edit, waiting while the queue is full
+	 *
+	 * @param edit
+	 *            The edit
+	 * @throws IOException
+	 *             If the edit cannot be written
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	synchronized void put(Edit edit) throws IOException, InterruptedException {
+		while (count >= capacity)
+			wait();
+		File file = new File(directory, String.format("%016d", sequence++)
+				+ SUFFIX);
+		write(edit, file);
+		edit.file = file;
+		pending.add(edit);
+		++count;
+		notifyAll();
+	}
+
+	/**
+	 * Takes the oldest edit. It stays on disk until done() is called.
+	 *
+	 * @param timeout
+	 *            How long to wait for an edit
+	 * @param unit
+	 *            The unit of the timeout
+	 * @return The edit or null if none came in time
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	synchronized Edit poll(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		long end = System.nanoTime() + unit.toNanos(timeout);
+		while (pending.isEmpty()) {
+			long left = end - System.nanoTime();
+			if (left <= 0)
+				return null;
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return pending.poll();
+	}
+
+	/**
+	 * Removes an edit from the queue, after it was written or when it is not
+	 * to be written any more
+	 *
+	 * @param edit
+	 *            The edit (taken or pending)
+	 * @throws IOException
+	 *             If the file of the edit cannot be deleted
+	 */
+	synchronized void done(Edit edit) throws IOException {
+		pending.remove(edit);
+		Files.delete(edit.file.toPath());
+		--count;
+		notifyAll();
+	}
+
+	private static void write(Edit edit, File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(temp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				stream, 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(edit.title);
+			out.writeLong(edit.baseRevid);
+			out.writeLong(edit.baseTime == null ? 0 : edit.baseTime
+					.getTimeInMillis());
+			out.writeUTF(edit.summary);
+			byte[] text = edit.text.getBytes(UTF8);
+			out.writeInt(text.length);
+			out.write(text);
+			out.flush();
+			stream.getChannel().force(false);
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static Edit read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not a queued edit: " + file);
+			String title = in.readUTF();
+			long baseRevid = in.readLong();
+			long millis = in.readLong();
+			Calendar baseTime = null;
+			if (millis != 0) {
+				baseTime = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+				baseTime.setTimeInMillis(millis);
+			}
+			String summary = in.readUTF();
+			byte[] text = new byte[in.readInt()];
+			in.readFully(text);
+			return new Edit(title, baseRevid, baseTime, summary, new String(
+					text, UTF8));
+		} finally {
+			in.close();
+		}
+	}
+}
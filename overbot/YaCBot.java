@@ -1,14 +1,36 @@
 package overbot;
 
+import java.io.File;
 import java.io.IOException;
 
 import javax.security.auth.login.LoginException;
 
+import shared.CategoryDumpImporter;
+import shared.CategoryGraph;
+import shared.CategoryGraphStore;
+import shared.CleanupRules;
 import shared.Wiki;
 import shared.WikiPage;
 
 public class YaCBot {
 
+	private static final String RULE_FILE = "cleanup-rules.txt";
+	// the progress of the crawl, to resume from
+	private static final String JOURNAL_FILE = "crawl-journal.log";
+	// the computed edits which are not written yet
+	private static final String EDIT_QUEUE_DIRECTORY = "edit-queue";
+	// how many edits may wait for the writer
+	private static final int EDIT_QUEUE_CAPACITY = 1000;
+	// how long a SIGTERM waits for the writer to finish its page
+	private static final long DRAIN_TIMEOUT = 60 * 1000;
+	// the category graph of former runs
+	private static final String CATEGORY_GRAPH_FILE = "category-graph.bin";
+	// dumps to read the category graph from (optional)
+	private static final String[] DUMP_FILES = {
+			"commonswiki-latest-page.sql.gz",
+			"commonswiki-latest-page_props.sql.gz",
+			"commonswiki-latest-categorylinks.sql.gz" };
+
 	public static void main(String[] args) {
 
 		System.out.println("v14.01.09");
@@ -16,9 +38,10 @@ public class YaCBot {
 		String[] expectedArgs = { "username", "continueKey" };
 		String[] expectedArgsDescription = {
 				"username is your username on the wiki.",
-				"continueKey is the file where to continue from "
-						+ "(equals the name of the last edited file or \"\")." };
-		if (args.length != expectedArgs.length) {
+				"continueKey is the file where to continue from (optional, "
+						+ "by default the crawl resumes where it stopped)." };
+		if (args.length != expectedArgs.length
+				&& args.length != expectedArgs.length - 1) {
 			System.out.print("Usage: java -jar filename.jar");
 			for (String i : expectedArgs)
 				System.out.print(" [" + i + "]");
@@ -29,6 +52,11 @@ public class YaCBot {
 		}
 		Wiki commons = new Wiki("commons.wikimedia.org");
 		try {
+			// Rules in the working directory replace the built-in ones and
+			// are reloaded when changed
+			File rules = new File(RULE_FILE);
+			if (rules.isFile())
+				CleanupRules.useRuleFile(rules);
 			System.out.println("Please type in the password for " + args[0]
 					+ ".");
 			commons.login(args[0], System.console().readPassword());
@@ -38,7 +66,25 @@ public class YaCBot {
 			commons.setMaxLag(3);
 			commons.setMarkMinor(true);
 			commons.setMarkBot(true);
-			cleanup(commons, args[1]);
+			// Remember the parents of up to 20000 categories for 6 hours
+			commons.setCategoryCache(20000, 6 * 60 * 60 * 1000);
+			// Read the category graph from dumps if they are in the working
+			// directory, they stay valid for 30 days
+			File[] dumps = new File[DUMP_FILES.length];
+			boolean haveDumps = true;
+			for (int d = 0; d < dumps.length; ++d)
+				haveDumps &= (dumps[d] = new File(DUMP_FILES[d])).isFile();
+			if (haveDumps) {
+				CategoryGraph graph = new CategoryGraph(
+						30L * 24 * 60 * 60 * 1000);
+				CategoryDumpImporter.importDumps(graph, dumps[0], dumps[1],
+						dumps[2]);
+				WikiPage.setCategoryGraph(graph);
+			}
+			// Reuse the category graph of former runs for up to 7 days
+			WikiPage.setCategoryGraphStore(new CategoryGraphStore(new File(
+					CATEGORY_GRAPH_FILE), 7L * 24 * 60 * 60 * 1000));
+			cleanup(commons, args.length > 1 ? args[1] : null);
 		} catch (LoginException | IOException e) {
 			e.printStackTrace();
 		}
@@ -50,79 +96,53 @@ public class YaCBot {
 	 * @param wiki
 	 *            Target wiki
 	 * @param continueKey
-	 *            The key to start with (equals the last edited file)
+	 *            The key to start with or null to resume from the journal
 	 * @throws IOException
 	 * @throws LoginException
 	 */
 	private static void cleanup(Wiki wiki, String continueKey)
 			throws IOException, LoginException {
-
-		Object[] nextBatchObjects;
-		String[] nextBatch;
-		continueKey = continueKey.replace(' ', '_');
-		long total = 0;
-		long startTime = System.currentTimeMillis();
-		int deletedCounter = 0;
-
-		while (true) {
-			nextBatchObjects = wiki.listAllFiles(continueKey, 15);
-			nextBatch = (String[]) nextBatchObjects[1];
-			continueKey = (String) nextBatchObjects[0];
-			total += nextBatch.length;
-
-			for (String i : nextBatch) {
-				if ((wiki.getPageInfo(i).get("protection")).toString()
-						.contains("edit=sysop"))
-					continue;
-				WikiPage target = new WikiPage();
+		CrawlJournal journal = new CrawlJournal(new File(JOURNAL_FILE));
+		if (continueKey == null) {
+			continueKey = journal.getPosition();
+			System.out.println("Resuming from \"" + continueKey + "\" ("
+					+ journal.getDoneCount() + " files beyond done).");
+		}
+		EditQueue edits = new EditQueue(new File(EDIT_QUEUE_DIRECTORY),
+				EDIT_QUEUE_CAPACITY);
+		final CleanupPipeline pipeline = new CleanupPipeline(wiki, journal,
+				edits, 4, 50);
+		// On SIGTERM let the writer finish its page and save the progress
+		final Thread main = Thread.currentThread();
+		Thread drain = new Thread(new Runnable() {
+			public void run() {
+				pipeline.stop();
 				try {
-					target = new WikiPage(wiki, i);
-				} catch (Exception e) {
-					String exceptionString = e.toString();
-					if (exceptionString.contains("FileNotFoundException")) {
-						System.out.println(exceptionString
-								+ "\nFile probably deleted: "
-								+ "Ignore and continue with next one...");
-						deletedCounter++;
-						continue;
-					} else {
-						e.printStackTrace();
-					}
+					main.join(DRAIN_TIMEOUT);
+				} catch (InterruptedException e) {
+					// exit anyway
 				}
-				target.cleanupWikitext();
-				target.cleanupOvercat(1, true);
-				target.cleanupUndercat();
-				target.writeText();
 			}
-			{
-				long runtime = (System.currentTimeMillis() - startTime) / 1000;
-				long days = runtime / (60 * 60 * 24);
-				long hours = (runtime % (60 * 60 * 24)) / (60 * 60);
-				long minutes = (runtime % (60 * 60)) / 60;
-				long seconds = runtime % 60;
-				float avg = ((float) runtime / (float) total);
-				System.out.println("\nStatus:\n"
-						+ total
-						+ " files crawled in "
-						+ days
-						+ " days "
-						+ hours
-						+ " hours "
-						+ minutes
-						+ " minutes "
-						+ seconds
-						+ " seconds. Thus it took "
-						+ (total == 0 ? "Inf" : avg)
-						+ " seconds per file."
-						+ (deletedCounter > 0 ? " [" + deletedCounter
-								+ " deleted files encountered]" : "") + "\n");
+		}, "drain");
+		Runtime.getRuntime().addShutdownHook(drain);
+		try {
+			pipeline.run(continueKey);
+		} finally {
+			try {
+				try {
+					journal.close();
+				} finally {
+					CategoryGraphStore store = WikiPage.getCategoryGraphStore();
+					if (store != null)
+						store.save();
+				}
+			} finally {
+				try {
+					Runtime.getRuntime().removeShutdownHook(drain);
+				} catch (IllegalStateException e) {
+					// already shutting down
+				}
 			}
-			if (continueKey.length() == 0)
-				break; // No next batch available
-			System.out
-					.println("Requesting next batch of files to work with. (Continue from "
-							+ continueKey + ")\n");
 		}
-		System.out.println("All batches done. Exiting.");
 	}
 }
@@ -0,0 +1,353 @@
+package shared;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the category graph from the SQL dumps of the MediaWiki tables page,
+ * page_props and categorylinks (as found on https://dumps.wikimedia.org/,
+ * optionally gzip-compressed) into a CategoryGraph. The dumps are streamed,
+ * only the category pages and their links are kept in memory.
+ * <p>
+ * The page dump has to be read before the categorylinks dump; page_props may
+ * be read at any time. The parents get the time the dumps were made as fetch
+ * time, which is taken from the "Dump completed on" trailer of the page dump
+ * if it has one.
+ */
+public class CategoryDumpImporter {
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int CATEGORY_NAMESPACE = 14;
+	// the date in the name of a dump, e.g. commonswiki-20140101-page.sql.gz
+	private static final Pattern NAME_DATE = Pattern
+			.compile("-(\\d{4})(\\d{2})(\\d{2})-");
+	// the last line of a dump, e.g. -- Dump completed on 2014-01-02  3:04:05
+	private static final Pattern COMPLETED = Pattern
+			.compile("-- Dump completed on (\\d{4})-(\\d{2})-(\\d{2})\\s+(\\d{1,2}):(\\d{2}):(\\d{2})");
+
+	private final CategoryGraph graph;
+	private long time;
+	// page_id of each category page => id in the graph
+	private final Map<Integer, Integer> categoryIds = new HashMap<Integer, Integer>();
+	// page_id of the hidden categories
+	private final BitSet hiddenPages = new BitSet();
+	// graph ids of the categories which got parents from the dump
+	private final BitSet imported = new BitSet();
+
+	/**
+	 * Receives the rows of an INSERT statement
+	 */
+	private interface RowHandler {
+		/**
+		 * @param fields
+		 *            The first fields of the row (strings unescaped, NULL as
+		 *            null)
+		 */
+		void row(String[] fields) throws IOException;
+	}
+
+	/**
+	 * Creates an importer for the given graph
+	 *
+	 * @param graph
+	 *            The graph to add the categories to
+	 * @param time
+	 *            When the dumps were made (becomes the fetch time of the
+	 *            parents in the graph unless the page dump tells otherwise)
+	 */
+	public CategoryDumpImporter(CategoryGraph graph, long time) {
+		this.graph = graph;
+		this.time = time;
+	}
+
+	/**
+	 * Reads the three dumps into the graph. The fetch time is the completion
+	 * date of the page dump, or else the date in the name of the
+	 * categorylinks dump (e.g. commonswiki-20140101-categorylinks.sql.gz),
+	 * or else the time the categorylinks dump was last modified, which is the
+	 * time it was downloaded (so a "latest" dump is assumed to be fresh).
+	 *
+	 * @param graph
+	 *            The graph to add the categories to
+	 * @param page
+	 *            The dump of the page table
+	 * @param pageProps
+	 *            The dump of the page_props table
+	 * @param categorylinks
+	 *            The dump of the categorylinks table
+	 * @throws IOException
+	 *             If a dump cannot be read
+	 */
+	public static void importDumps(CategoryGraph graph, File page,
+			File pageProps, File categorylinks) throws IOException {
+		long time = categorylinks.lastModified();
+		Matcher m = NAME_DATE.matcher(categorylinks.getName());
+		if (m.find())
+			time = toMillis(m, false);
+		CategoryDumpImporter importer = new CategoryDumpImporter(graph, time);
+		int categories = importer.readPages(page);
+		int hidden = importer.readPageProps(pageProps);
+		int links = importer.readCategoryLinks(categorylinks);
+		System.out.println("Imported " + categories + " categories ("
+				+ hidden + " hidden) with " + links + " parents from dumps.");
+	}
+
+	/**
+	 * Reads the category pages from the dump of the page table. If the dump
+	 * ends with its completion date, that becomes the fetch time of the
+	 * parents read later.
+	 *
+	 * @param dump
+	 *            The dump (.sql or .sql.gz)
+	 * @return The number of categories read
+	 * @throws IOException
+	 *             If the dump cannot be read
+	 */
+	public int readPages(File dump) throws IOException {
+		final int[] counter = { 0 };
+		// page_id, page_namespace, page_title, ...
+		long completed = readTable(dump, "page", 3, new RowHandler() {
+			public void row(String[] fields) {
+				if (Integer.parseInt(fields[1]) != CATEGORY_NAMESPACE)
+					return;
+				int page = Integer.parseInt(fields[0]);
+				int id = graph.intern("Category:"
+						+ fields[2].replace('_', ' '));
+				categoryIds.put(page, id);
+				if (hiddenPages.get(page))
+					graph.setHidden(id, true);
+				++counter[0];
+			}
+		});
+		if (completed > 0)
+			time = completed;
+		return counter[0];
+	}
+
+	/**
+	 * Reads the hidden categories from the dump of the page_props table
+	 *
+	 * @param dump
+	 *            The dump (.sql or .sql.gz)
+	 * @return The number of hidden pages read
+	 * @throws IOException
+	 *             If the dump cannot be read
+	 */
+	public int readPageProps(File dump) throws IOException {
+		final int[] counter = { 0 };
+		// pp_page, pp_propname, ...
+		readTable(dump, "page_props", 2, new RowHandler() {
+			public void row(String[] fields) {
+				if (!"hiddencat".equals(fields[1]))
+					return;
+				int page = Integer.parseInt(fields[0]);
+				hiddenPages.set(page);
+				Integer id = categoryIds.get(page);
+				if (id != null)
+					graph.setHidden(id, true);
+				++counter[0];
+			}
+		});
+		return counter[0];
+	}
+
+	/**
+	 * Reads the parents of all categories from the dump of the categorylinks
+	 * table. Needs the pages to be read first.
+	 *
+	 * @param dump
+	 *            The dump (.sql or .sql.gz)
+	 * @return The number of parent links read
+	 * @throws IOException
+	 *             If the dump cannot be read
+	 */
+	public int readCategoryLinks(File dump) throws IOException {
+		final int[] counter = { 0 };
+		// the rows come sorted by cl_from, collect the parents of one
+		// category at a time
+		final int[] current = { -1 };
+		final int[][] parents = { new int[16] };
+		final int[] parentCount = { 0 };
+		// cl_from, cl_to, ...
+		readTable(dump, "categorylinks", 2, new RowHandler() {
+			public void row(String[] fields) {
+				Integer id = categoryIds.get(Integer.parseInt(fields[0]));
+				if (id == null)
+					return; // not a category
+				if (id != current[0]) {
+					addParents(current[0], parents[0], parentCount[0]);
+					current[0] = id;
+					parentCount[0] = 0;
+				}
+				if (parentCount[0] == parents[0].length)
+					parents[0] = Arrays.copyOf(parents[0], 2 * parentCount[0]);
+				parents[0][parentCount[0]++] = graph.intern("Category:"
+						+ fields[1].replace('_', ' '));
+				++counter[0];
+			}
+		});
+		addParents(current[0], parents[0], parentCount[0]);
+		// categories without links are top level categories
+		for (int id : categoryIds.values())
+			if (!imported.get(id))
+				graph.setParents(id, new int[0], time);
+		return counter[0];
+	}
+
+	private void addParents(int id, int[] parents, int count) {
+		if (id < 0)
+			return;
+		int[] parentIds = Arrays.copyOf(parents, count);
+		if (imported.get(id)) {
+			// the rows of this category were not in one piece
+			int[] known = graph.getParents(id);
+			if (known != null) {
+				parentIds = Arrays.copyOf(known, known.length + count);
+				System.arraycopy(parents, 0, parentIds, known.length, count);
+			}
+		}
+		imported.set(id);
+		graph.setParents(id, parentIds, time);
+	}
+
+	/**
+	 * Streams the rows of all INSERT statements for the table in the dump
+	 *
+	 * @param dump
+	 *            The dump (.sql or .sql.gz)
+	 * @param table
+	 *            The name of the table
+	 * @param fieldCount
+	 *            The number of leading fields of each row to be handled
+	 * @param handler
+	 *            Receives the rows
+	 * @return When the dump was completed according to its last line or 0 if
+	 *         it does not tell
+	 */
+	private static long readTable(File dump, String table, int fieldCount,
+			RowHandler handler) throws IOException {
+		InputStream in = new FileInputStream(dump);
+		try {
+			if (dump.getName().endsWith(".gz"))
+				in = new GZIPInputStream(in, 1 << 16);
+			// Latin-1 keeps the bytes, strings are decoded as UTF-8 later
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					in, LATIN1), 1 << 20);
+			String insert = "INSERT INTO `" + table + "` VALUES ";
+			String[] fields = new String[fieldCount];
+			StringBuilder value = new StringBuilder();
+			String line;
+			long completed = 0;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(insert))
+					parseRows(line, insert.length(), fields, value, handler);
+				else if (line.startsWith("-- Dump completed")) {
+					Matcher m = COMPLETED.matcher(line);
+					if (m.find())
+						completed = toMillis(m, true);
+				}
+			}
+			return completed;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return The date (and time) matched as year, month, day (, hour,
+	 *         minute, second) in UTC
+	 */
+	private static long toMillis(Matcher m, boolean withTime) {
+		Calendar c = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+		c.clear();
+		c.set(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)) - 1,
+				Integer.parseInt(m.group(3)));
+		if (withTime) {
+			c.set(Calendar.HOUR_OF_DAY, Integer.parseInt(m.group(4)));
+			c.set(Calendar.MINUTE, Integer.parseInt(m.group(5)));
+			c.set(Calendar.SECOND, Integer.parseInt(m.group(6)));
+		}
+		return c.getTimeInMillis();
+	}
+
+	/**
+	 * Parses the rows of a single INSERT statement of the form
+	 * (1,'a\'b',NULL),(2,...);
+	 */
+	private static void parseRows(String line, int p, String[] fields,
+			StringBuilder value, RowHandler handler) throws IOException {
+		int length = line.length();
+		while (p < length && line.charAt(p) == '(') {
+			++p;
+			int field = 0;
+			while (true) {
+				String text = null;
+				if (line.charAt(p) == '\'') {
+					value.setLength(0);
+					for (++p; line.charAt(p) != '\''; ++p) {
+						char c = line.charAt(p);
+						if (c == '\\') {
+							c = line.charAt(++p);
+							switch (c) {
+							case '0':
+								c = '\0';
+								break;
+							case 'n':
+								c = '\n';
+								break;
+							case 'r':
+								c = '\r';
+								break;
+							case 't':
+								c = '\t';
+								break;
+							case 'Z':
+								c = '\032';
+								break;
+							}
+						}
+						value.append(c);
+					}
+					++p; // closing quote
+					if (field < fields.length)
+						text = new String(value.toString().getBytes(LATIN1),
+								UTF8);
+				} else {
+					int start = p;
+					while (line.charAt(p) != ',' && line.charAt(p) != ')')
+						++p;
+					if (field < fields.length) {
+						text = line.substring(start, p);
+						if (text.equals("NULL"))
+							text = null;
+					}
+				}
+				if (field < fields.length)
+					fields[field] = text;
+				++field;
+				if (line.charAt(p++) == ')')
+					break;
+			}
+			if (field < fields.length)
+				throw new IOException("Row with too few fields: " + field);
+			handler.row(fields);
+			if (p < length && line.charAt(p) == ',')
+				++p;
+		}
+	}
+}
@@ -0,0 +1,419 @@
+package shared;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The category graph of a wiki in memory. Each category name is interned to
+ * an int id once; the parents of all categories are kept in one int array
+ * (CSR-style: the parents of a category are a slice of it) and the hidden
+ * flags in a BitSet. This takes a fraction of the heap of Strings in sets
+ * and lets ancestor sets be BitSets of ids.
+ * <p>
+ * The ancestors of a category up to some depth are computed once and kept in
+ * an index (sorted ids with their distance), so "is A an ancestor of B
+ * within d levels" is a binary search. Entries of the index are dropped when
+ * the parents of one of their categories change. Thread safe.
+ */
+public class CategoryGraph {
+	// count value of categories whose parents are unknown
+	private static final int UNKNOWN = -1;
+
+	private final long maxAge;
+
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private String[] names = new String[1024];
+	private int size = 0;
+	// the parents of category id are edges[first[id]] ... edges[first[id] +
+	// count[id] - 1], fetched at fetched[id]
+	private int[] first = new int[1024];
+	private int[] count = new int[1024];
+	private long[] fetched = new long[1024];
+	private int[] edges = new int[4096];
+	private int edgeCount = 0;
+	// slots of replaced parents in edges
+	private int unusedEdges = 0;
+	private final BitSet hidden = new BitSet();
+	// categories which were seen as parents, i.e. whose hidden flag is known
+	private final BitSet hiddenKnown = new BitSet();
+	// the ancestor index, least recently used entries are dropped first
+	private final Map<Long, Ancestors> ancestorIndex;
+
+	/**
+	 * The ancestors of a category up to a depth
+	 */
+	private static class Ancestors {
+		private final int depth;
+		private final long created = System.currentTimeMillis();
+		// sorted ids and the level each one was found on (1 = parent)
+		private final int[] ids;
+		private final byte[] levels;
+
+		private Ancestors(int depth, int[] ids, byte[] levels) {
+			this.depth = depth;
+			this.ids = ids;
+			this.levels = levels;
+		}
+	}
+
+	/**
+	 * Creates an empty graph
+	 *
+	 * @param maxAge
+	 *            How long (in milliseconds) the parents of a category are
+	 *            valid, afterwards they count as unknown
+	 */
+	public CategoryGraph(long maxAge) {
+		this(maxAge, 100000);
+	}
+
+	/**
+	 * Creates an empty graph
+	 *
+	 * @param maxAge
+	 *            How long (in milliseconds) the parents of a category are
+	 *            valid, afterwards they count as unknown
+	 * @param indexSize
+	 *            The maximum number of categories in the ancestor index
+	 */
+	public CategoryGraph(long maxAge, final int indexSize) {
+		this.maxAge = maxAge;
+		this.ancestorIndex = new LinkedHashMap<Long, Ancestors>(16, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Ancestors> eldest) {
+				return size() > indexSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the id of a category, assigning a new one if the category is not
+	 * known yet
+	 *
+	 * @param name
+	 *            The category (with "Category:" prefix)
+	 * @return The id of the category
+	 */
+	public synchronized int intern(String name) {
+		Integer id = ids.get(name);
+		if (id != null)
+			return id;
+		if (size == names.length) {
+			int capacity = 2 * size;
+			names = Arrays.copyOf(names, capacity);
+			first = Arrays.copyOf(first, capacity);
+			count = Arrays.copyOf(count, capacity);
+			fetched = Arrays.copyOf(fetched, capacity);
+		}
+		names[size] = name;
+		count[size] = UNKNOWN;
+		ids.put(name, size);
+		return size++;
+	}
+
+	/**
+	 * @param name
+	 *            The category (with "Category:" prefix)
+	 * @return The id of the category or -1 if it is not known
+	 */
+	public synchronized int getId(String name) {
+		Integer id = ids.get(name);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @param id
+	 *            The id of a category
+	 * @return The category (with "Category:" prefix)
+	 */
+	public synchronized String getName(int id) {
+		return names[id];
+	}
+
+	/**
+	 * @return The number of known categories
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @param id
+	 *            The id of a category
+	 * @return Whether the parents of the category are known and not too old
+	 */
+	public synchronized boolean hasParents(int id) {
+		return count[id] != UNKNOWN
+				&& System.currentTimeMillis() - fetched[id] <= maxAge;
+	}
+
+	/**
+	 * @param id
+	 *            The id of a category
+	 * @return The ids of the parents of the category or null if they are
+	 *         unknown or too old
+	 */
+	public synchronized int[] getParents(int id) {
+		if (!hasParents(id))
+			return null;
+		return Arrays.copyOfRange(edges, first[id], first[id] + count[id]);
+	}
+
+	/**
+	 * @param id
+	 *            The id of a category
+	 * @return Whether the category is known to be hidden
+	 */
+	public synchronized boolean isHidden(int id) {
+		return hidden.get(id);
+	}
+
+	/**
+	 * Sets the parents of a category as fetched from the wiki
+	 *
+	 * @param id
+	 *            The id of the category
+	 * @param parents
+	 *            The parents (with "Category:" prefix) mapped to whether they
+	 *            are hidden
+	 */
+	public synchronized void setParents(int id, Map<String, Boolean> parents) {
+		setParents(id, parents, System.currentTimeMillis());
+	}
+
+	/**
+	 * Sets the parents of a category
+	 *
+	 * @param id
+	 *            The id of the category
+	 * @param parents
+	 *            The parents (with "Category:" prefix) mapped to whether they
+	 *            are hidden
+	 * @param time
+	 *            When the parents were fetched
+	 */
+	public synchronized void setParents(int id, Map<String, Boolean> parents,
+			long time) {
+		int[] parentIds = new int[parents.size()];
+		int p = 0;
+		for (Map.Entry<String, Boolean> parent : parents.entrySet()) {
+			parentIds[p] = intern(parent.getKey());
+			setHidden(parentIds[p++], parent.getValue());
+		}
+		setParents(id, parentIds, time);
+	}
+
+	/**
+	 * Sets the parents of a category
+	 *
+	 * @param id
+	 *            The id of the category
+	 * @param parentIds
+	 *            The ids of the parents
+	 * @param time
+	 *            When the parents were fetched
+	 */
+	public synchronized void setParents(int id, int[] parentIds, long time) {
+		if (count[id] != UNKNOWN
+				&& !Arrays.equals(parentIds, Arrays.copyOfRange(edges,
+						first[id], first[id] + count[id])))
+			invalidateAncestors(id);
+		if (count[id] > 0)
+			unusedEdges += count[id];
+		if (edgeCount + parentIds.length > edges.length)
+			compact(parentIds.length);
+		System.arraycopy(parentIds, 0, edges, edgeCount, parentIds.length);
+		first[id] = edgeCount;
+		count[id] = parentIds.length;
+		fetched[id] = time;
+		edgeCount += parentIds.length;
+	}
+
+	/**
+	 * Marks a category as hidden or not hidden
+	 *
+	 * @param id
+	 *            The id of the category
+	 * @param isHidden
+	 *            Whether the category is hidden
+	 */
+	public synchronized void setHidden(int id, boolean isHidden) {
+		boolean changed = hiddenKnown.get(id) && hidden.get(id) != isHidden;
+		hidden.set(id, isHidden);
+		hiddenKnown.set(id);
+		if (!changed)
+			return;
+		// changes which ancestors are skipped (rare, so drop them all)
+		Iterator<Long> keys = ancestorIndex.keySet().iterator();
+		while (keys.hasNext())
+			if ((keys.next() & 1) == 1)
+				keys.remove();
+	}
+
+	/**
+	 * Checks if a category is an ancestor of another one. The parents of all
+	 * categories up to the given depth must be known (see getAncestors()).
+	 *
+	 * @param ancestor
+	 *            The id of the supposed ancestor
+	 * @param id
+	 *            The id of the category
+	 * @param depth
+	 *            The maximum number of levels between them (1 = parent)
+	 * @param ignoreHidden
+	 *            If hidden categories should not be considered
+	 * @return Whether ancestor is an ancestor of the category within depth
+	 *         levels
+	 */
+	public synchronized boolean isAncestor(int ancestor, int id, int depth,
+			boolean ignoreHidden) {
+		Ancestors ancestors = getIndexEntry(id, depth, ignoreHidden);
+		int a = Arrays.binarySearch(ancestors.ids, ancestor);
+		return a >= 0 && ancestors.levels[a] <= depth;
+	}
+
+	/**
+	 * Returns the ancestors of a category from the ancestor index, computing
+	 * them if needed. The parents of all categories up to the given depth
+	 * should be known; unknown parents count as none and the result is not
+	 * kept in the index then.
+	 *
+	 * @param id
+	 *            The id of the category
+	 * @param depth
+	 *            The depth to be examined (depth == 1 means only the parents)
+	 * @param ignoreHidden
+	 *            If hidden categories should not be considered
+	 * @return The sorted ids of the ancestors
+	 */
+	public synchronized int[] getAncestors(int id, int depth,
+			boolean ignoreHidden) {
+		Ancestors ancestors = getIndexEntry(id, depth, ignoreHidden);
+		if (ancestors.depth == depth)
+			return ancestors.ids.clone();
+		int[] ids = new int[ancestors.ids.length];
+		int size = 0;
+		for (int a = 0; a < ancestors.ids.length; ++a)
+			if (ancestors.levels[a] <= depth)
+				ids[size++] = ancestors.ids[a];
+		return Arrays.copyOf(ids, size);
+	}
+
+	/**
+	 * @return Whether the ancestor index holds the ancestors of the category
+	 *         up to the given depth
+	 */
+	public synchronized boolean hasAncestors(int id, int depth,
+			boolean ignoreHidden) {
+		Ancestors ancestors = ancestorIndex.get(indexKey(id, ignoreHidden));
+		return ancestors != null && ancestors.depth >= depth
+				&& System.currentTimeMillis() - ancestors.created <= maxAge;
+	}
+
+	private static long indexKey(int id, boolean ignoreHidden) {
+		return ((long) id << 1) | (ignoreHidden ? 1 : 0);
+	}
+
+	private Ancestors getIndexEntry(int id, int depth, boolean ignoreHidden) {
+		if (hasAncestors(id, depth, ignoreHidden))
+			return ancestorIndex.get(indexKey(id, ignoreHidden));
+		// walk up level by level, each category only once
+		BitSet visited = new BitSet();
+		visited.set(id);
+		int[] level = { id };
+		boolean complete = true;
+		int[] found = new int[16];
+		byte[] foundLevels = new byte[16];
+		int foundSize = 0;
+		for (int d = 1; d <= depth && level.length > 0; ++d) {
+			int[] next = new int[16];
+			int nextSize = 0;
+			for (int category : level) {
+				if (!hasParents(category)) {
+					complete = false;
+					continue;
+				}
+				for (int e = first[category]; e < first[category]
+						+ count[category]; ++e) {
+					int parent = edges[e];
+					if ((ignoreHidden && hidden.get(parent))
+							|| visited.get(parent))
+						continue;
+					visited.set(parent);
+					if (foundSize == found.length) {
+						found = Arrays.copyOf(found, 2 * foundSize);
+						foundLevels = Arrays.copyOf(foundLevels, 2 * foundSize);
+					}
+					found[foundSize] = parent;
+					foundLevels[foundSize++] = (byte) Math.min(d, 127);
+					if (nextSize == next.length)
+						next = Arrays.copyOf(next, 2 * nextSize);
+					next[nextSize++] = parent;
+				}
+			}
+			level = Arrays.copyOf(next, nextSize);
+		}
+		// sort by id, keeping the level of each id
+		long[] sorted = new long[foundSize];
+		for (int f = 0; f < foundSize; ++f)
+			sorted[f] = ((long) found[f] << 8) | foundLevels[f];
+		Arrays.sort(sorted);
+		int[] ids = new int[foundSize];
+		byte[] levels = new byte[foundSize];
+		for (int f = 0; f < foundSize; ++f) {
+			ids[f] = (int) (sorted[f] >>> 8);
+			levels[f] = (byte) (sorted[f] & 0xff);
+		}
+		Ancestors ancestors = new Ancestors(depth, ids, levels);
+		if (complete)
+			ancestorIndex.put(indexKey(id, ignoreHidden), ancestors);
+		return ancestors;
+	}
+
+	/**
+	 * Drops all entries of the ancestor index which depend on the parents of
+	 * the category
+	 */
+	private void invalidateAncestors(int id) {
+		Iterator<Map.Entry<Long, Ancestors>> entries = ancestorIndex
+				.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Long, Ancestors> entry = entries.next();
+			if ((entry.getKey() >>> 1) == id
+					|| Arrays.binarySearch(entry.getValue().ids, id) >= 0)
+				entries.remove();
+		}
+	}
+
+	/**
+	 * Makes room for more edges, dropping the slots of replaced parents if
+	 * they make up a good part of the array
+	 */
+	private void compact(int needed) {
+		if (unusedEdges > edgeCount / 4) {
+			int[] compacted = new int[Math.max(edges.length, edgeCount
+					- unusedEdges + needed)];
+			int e = 0;
+			for (int id = 0; id < size; ++id) {
+				if (count[id] <= 0)
+					continue;
+				System.arraycopy(edges, first[id], compacted, e, count[id]);
+				first[id] = e;
+				e += count[id];
+			}
+			edges = compacted;
+			edgeCount = e;
+			unusedEdges = 0;
+		}
+		if (edgeCount + needed > edges.length)
+			edges = Arrays.copyOf(edges,
+					Math.max(2 * edges.length, edgeCount + needed));
+	}
+}
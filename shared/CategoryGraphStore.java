@@ -0,0 +1,308 @@
+package shared;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent store of the category graph of a wiki: The parents of each
+ * known category, whether a category is hidden and when its parents were
+ * fetched. It lets a restarted bot reuse the graph discovered by former runs
+ * instead of asking the wiki again.
+ * <p>
+ * The store file is memory-mapped on first use. Changes are kept in memory
+ * until save() writes a new file without the expired parents, which replaces
+ * the old one atomically. The file layout (big-endian) is
+ * <pre>
+ * int magic, int version, int count, int offset of the names
+ * int[count] offset of each category
+ * per category: long fetched (0 = parents unknown), byte flags (1 = hidden),
+ *               int number of parents, int[] parent ids
+ * per category: short length, UTF-8 bytes of the title
+ * </pre>
+ * where the id of a category is its index. Files must stay below 2 GB.
+ */
+public class CategoryGraphStore {
+	private static final int MAGIC = 0x59434753; // "YCGS"
+	private static final int VERSION = 1;
+	private static final int HEADER = 16;
+	private static final byte HIDDEN = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final long maxAge;
+
+	// the mapped file, null until loaded or if there is no file yet
+	private MappedByteBuffer buffer;
+	private boolean loaded = false;
+	// titles by id and ids by title, of the file and of all added categories
+	private final List<String> titles = new ArrayList<String>();
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private int storedCount = 0;
+	// categories whose parents were added since loading, by id
+	private final Map<Integer, Node> changed = new HashMap<Integer, Node>();
+	// hidden flags learned since loading, by id
+	private final Map<Integer, Boolean> changedHidden = new HashMap<Integer, Boolean>();
+
+	private static class Node {
+		private final long fetched;
+		private final int[] parents;
+
+		private Node(long fetched, int[] parents) {
+			this.fetched = fetched;
+			this.parents = parents;
+		}
+	}
+
+	/**
+	 * Creates a store backed by the given file. Nothing is read until the
+	 * store is used.
+	 *
+	 * @param file
+	 *            The store file (need not exist yet)
+	 * @param maxAge
+	 *            How long (in milliseconds) the stored parents of a category
+	 *            are valid
+	 */
+	public CategoryGraphStore(File file, long maxAge) {
+		this.file = file;
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Reads the stored parents of a category
+	 *
+	 * @param category
+	 *            The category (with "Category:" prefix)
+	 * @param parents
+	 *            The map to put the parents (with "Category:" prefix) into,
+	 *            mapped to whether they are hidden
+	 * @return When the parents were fetched or 0 if they are unknown or too
+	 *         old (the map stays empty then)
+	 * @throws IOException
+	 *             If the store file cannot be read
+	 */
+	public synchronized long getParents(String category,
+			Map<String, Boolean> parents) throws IOException {
+		load();
+		Integer id = ids.get(category);
+		if (id == null)
+			return 0;
+		Node node = getNode(id);
+		if (node == null
+				|| System.currentTimeMillis() - node.fetched > maxAge)
+			return 0;
+		for (int parent : node.parents)
+			parents.put(titles.get(parent), isHidden(parent));
+		return node.fetched;
+	}
+
+	/**
+	 * Stores the parents of a category as just fetched from the wiki
+	 *
+	 * @param category
+	 *            The category (with "Category:" prefix)
+	 * @param parents
+	 *            The parents (with "Category:" prefix) mapped to whether they
+	 *            are hidden
+	 * @throws IOException
+	 *             If the store file cannot be read
+	 */
+	public synchronized void putParents(String category,
+			Map<String, Boolean> parents) throws IOException {
+		load();
+		int[] parentIds = new int[parents.size()];
+		int p = 0;
+		for (Map.Entry<String, Boolean> parent : parents.entrySet()) {
+			parentIds[p] = getId(parent.getKey());
+			changedHidden.put(parentIds[p++], parent.getValue());
+		}
+		changed.put(getId(category), new Node(System.currentTimeMillis(),
+				parentIds));
+	}
+
+	/**
+	 * @return The number of categories with changed parents since the last
+	 *         save
+	 */
+	public synchronized int getChangeCount() {
+		return changed.size();
+	}
+
+	/**
+	 * Writes the whole graph to a new file which then replaces the old one.
+	 * Parents older than the maximum age are left out, as are the categories
+	 * which are then neither known nor a parent. Does nothing if nothing has
+	 * changed.
+	 *
+	 * @throws IOException
+	 *             If the file cannot be written
+	 */
+	public synchronized void save() throws IOException {
+		load();
+		if (changed.isEmpty() && changedHidden.isEmpty())
+			return;
+		int count = titles.size();
+		long now = System.currentTimeMillis();
+		Node[] nodes = new Node[count];
+		boolean[] keep = new boolean[count];
+		for (int id = 0; id < count; ++id) {
+			Node node = getNode(id);
+			if (node == null || now - node.fetched > maxAge)
+				continue;
+			nodes[id] = node;
+			keep[id] = true;
+			for (int parent : node.parents)
+				keep[parent] = true;
+		}
+		// the categories kept get new ids without gaps
+		int[] newIds = new int[count];
+		int newCount = 0;
+		for (int id = 0; id < count; ++id)
+			newIds[id] = keep[id] ? newCount++ : -1;
+		long offset = HEADER + 4L * newCount;
+		int[] offsets = new int[newCount];
+		for (int id = 0; id < count; ++id) {
+			if (!keep[id])
+				continue;
+			offsets[newIds[id]] = (int) offset;
+			offset += 8 + 1 + 4
+					+ 4 * (nodes[id] == null ? 0 : nodes[id].parents.length);
+		}
+		if (offset > Integer.MAX_VALUE)
+			throw new IOException("Category graph too large for " + file);
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(temp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				stream, 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(newCount);
+			out.writeInt((int) offset);
+			for (int id = 0; id < newCount; ++id)
+				out.writeInt(offsets[id]);
+			for (int id = 0; id < count; ++id) {
+				if (!keep[id])
+					continue;
+				out.writeLong(nodes[id] == null ? 0 : nodes[id].fetched);
+				out.writeByte(isHidden(id) ? HIDDEN : 0);
+				if (nodes[id] == null)
+					out.writeInt(0);
+				else {
+					out.writeInt(nodes[id].parents.length);
+					for (int parent : nodes[id].parents)
+						out.writeInt(newIds[parent]);
+				}
+			}
+			for (int id = 0; id < count; ++id) {
+				if (!keep[id])
+					continue;
+				byte[] title = titles.get(id).getBytes(UTF8);
+				out.writeShort(title.length);
+				out.write(title);
+			}
+			// the new file has to be complete before it replaces the old one
+			out.flush();
+			stream.getChannel().force(false);
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		// the ids have changed, read the new file from scratch
+		changed.clear();
+		changedHidden.clear();
+		titles.clear();
+		ids.clear();
+		buffer = null;
+		storedCount = 0;
+		loaded = false;
+		load();
+	}
+
+	/**
+	 * Maps the store file and reads the titles of all categories, if not done
+	 * yet
+	 */
+	private void load() throws IOException {
+		if (loaded)
+			return;
+		if (!file.isFile()) {
+			loaded = true;
+			return;
+		}
+		map();
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw new IOException("Not a category graph store: " + file);
+		storedCount = buffer.getInt(8);
+		ByteBuffer names = buffer.duplicate();
+		names.position(buffer.getInt(12));
+		for (int id = 0; id < storedCount; ++id) {
+			byte[] title = new byte[names.getShort() & 0xffff];
+			names.get(title);
+			String category = new String(title, UTF8);
+			titles.add(category);
+			ids.put(category, id);
+		}
+		loaded = true;
+	}
+
+	private void map() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+		} finally {
+			raf.close(); // the mapping stays valid
+		}
+	}
+
+	private int getId(String category) {
+		Integer id = ids.get(category);
+		if (id == null) {
+			id = titles.size();
+			titles.add(category);
+			ids.put(category, id);
+		}
+		return id;
+	}
+
+	/**
+	 * @return The parents of the category or null if they are unknown
+	 */
+	private Node getNode(int id) {
+		Node node = changed.get(id);
+		if (node != null || id >= storedCount)
+			return node;
+		int offset = buffer.getInt(HEADER + 4 * id);
+		long fetched = buffer.getLong(offset);
+		if (fetched == 0)
+			return null;
+		int[] parents = new int[buffer.getInt(offset + 9)];
+		for (int p = 0; p < parents.length; ++p)
+			parents[p] = buffer.getInt(offset + 13 + 4 * p);
+		return new Node(fetched, parents);
+	}
+
+	private boolean isHidden(int id) {
+		Boolean hidden = changedHidden.get(id);
+		if (hidden != null || id >= storedCount)
+			return hidden != null && hidden;
+		return (buffer.get(buffer.getInt(HEADER + 4 * id) + 8) & HIDDEN) != 0;
+	}
+}
@@ -0,0 +1,432 @@
+package shared;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The rules of WikiPage.cleanupWikitext. They are read from a rule file and
+ * compiled once; the rules which come with YaCBot are in cleanup-rules.txt
+ * next to this class. Another rule file can be used instead and is reloaded
+ * whenever it changes, without the need to restart the bot.
+ * <p>
+ * A rule file consists of groups of rules. The rules of a group share the
+ * part of the edit summary which is added if the group changes the text. Lines
+ * starting with "#" outside of a rule are ignored. Each group starts with
+ * <pre>
+ * &#64;group name
+ * &#64;summary text for the edit summary (optional, none for minor cleanup)
+ * &#64;scope file|all (optional, default: all)
+ * &#64;stage text|segments (optional, default: segments)
+ * </pre>
+ * where "file" applies the group to files only and "text" applies it to the
+ * whole text including comments, nowiki and the like. Each rule of the group
+ * takes three lines:
+ * <pre>
+ * &#64;rule [flags] [fixpoint]
+ * the regex pattern
+ * the replacement
+ * </pre>
+ * The flags are a combination of "i" (case insensitive), "u" (unicode case),
+ * "m" (multiline) and "s" (dotall). "fixpoint" repeats the rule until no
+ * change to the text can be made anymore. Pattern and replacement are taken
+ * as they are, except that "\n" in the replacement stands for a line break.
+ */
+public final class CleanupRules {
+	private static final String DEFAULT_RULES = "cleanup-rules.txt";
+
+	private static volatile CleanupRules active;
+	private static File ruleFile;
+	private static long ruleFileModified;
+
+	private final RuleGroup[] preprocessing;
+	private final RuleGroup[] groups;
+
+	private CleanupRules(RuleGroup[] preprocessing, RuleGroup[] groups) {
+		this.preprocessing = preprocessing;
+		this.groups = groups;
+	}
+
+	/**
+	 * The groups which are applied to the whole text before it is tokenized
+	 * (i.e. they may change comments)
+	 */
+	RuleGroup[] getPreprocessing() {
+		return preprocessing;
+	}
+
+	/**
+	 * The groups which are applied to each editable part of the text, in this
+	 * order
+	 */
+	RuleGroup[] getGroups() {
+		return groups;
+	}
+
+	/**
+	 * Returns the rules which are currently in use. The default rules are read
+	 * on first use.
+	 * 
+	 * @return The active rules
+	 */
+	static CleanupRules getActive() {
+		CleanupRules rules = active;
+		if (rules == null) {
+			synchronized (CleanupRules.class) {
+				if (active == null) {
+					InputStream in = CleanupRules.class
+							.getResourceAsStream(DEFAULT_RULES);
+					if (in == null)
+						throw new IllegalStateException(DEFAULT_RULES
+								+ " is missing");
+					try {
+						active = parse(in, DEFAULT_RULES);
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+				rules = active;
+			}
+		}
+		return rules;
+	}
+
+	/**
+	 * Use the rules of the given file from now on instead of the default rules
+	 * 
+	 * @param file
+	 *            The rule file
+	 * @throws IOException
+	 *             If the file can not be read or contains an invalid rule (the
+	 *             rules in use stay active then)
+	 */
+	public static synchronized void useRuleFile(File file) throws IOException {
+		long modified = file.lastModified();
+		active = parse(new FileInputStream(file), file.getPath());
+		ruleFile = file;
+		ruleFileModified = modified;
+		System.out.println("Cleanup rules read from " + file);
+	}
+
+	/**
+	 * Read the rule file again if it changed since it was read the last time.
+	 * Should be called between batches; pages which are already being cleaned
+	 * up keep the rules they started with.
+	 * 
+	 * @return If the rules were reloaded
+	 */
+	public static synchronized boolean reloadIfModified() {
+		if (ruleFile == null || ruleFile.lastModified() == ruleFileModified)
+			return false;
+		try {
+			useRuleFile(ruleFile);
+			return true;
+		} catch (IOException e) {
+			// keep the old rules rather than stopping the crawl
+			ruleFileModified = ruleFile.lastModified();
+			System.out.println("Could not reload the cleanup rules, "
+					+ "continue with the old ones: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Parse and compile the rules of a rule file
+	 * 
+	 * @param in
+	 *            The content of the rule file (gets closed)
+	 * @param source
+	 *            The name of the rule file (used in error messages)
+	 * @return The compiled rules
+	 * @throws IOException
+	 *             If the file can not be read or contains an invalid rule
+	 */
+	static CleanupRules parse(InputStream in, String source)
+			throws IOException {
+		List<RuleGroup> preprocessing = new ArrayList<RuleGroup>();
+		List<RuleGroup> groups = new ArrayList<RuleGroup>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+				"UTF-8"));
+		try {
+			String groupName = null;
+			String summary = null;
+			boolean isFile = false;
+			boolean wholeText = false;
+			List<Rule> rules = new ArrayList<Rule>();
+			int lineNumber = 0;
+			while (true) {
+				String line = reader.readLine();
+				++lineNumber;
+				if (line == null || line.startsWith("@group ")) {
+					if (groupName != null) {
+						RuleGroup group = new RuleGroup(summary, isFile,
+								rules.toArray(new Rule[rules.size()]));
+						(wholeText ? preprocessing : groups).add(group);
+					}
+					if (line == null)
+						break;
+					groupName = line.substring(7).trim();
+					summary = null;
+					isFile = false;
+					wholeText = false;
+					rules.clear();
+				} else if (line.startsWith("#") || line.trim().isEmpty()) {
+					continue;
+				} else if (groupName == null) {
+					throw new IOException(source + ":" + lineNumber
+							+ ": Expected @group but found " + line);
+				} else if (line.startsWith("@summary ")) {
+					// the parts of the summary are separated by a space
+					summary = line.substring(9).trim() + " ";
+				} else if (line.startsWith("@scope ")) {
+					isFile = parseOption(line.substring(7), "file", "all",
+							source, lineNumber);
+				} else if (line.startsWith("@stage ")) {
+					wholeText = parseOption(line.substring(7), "text",
+							"segments", source, lineNumber);
+				} else if (line.equals("@rule") || line.startsWith("@rule ")) {
+					String pattern = reader.readLine();
+					String replacement = reader.readLine();
+					if (pattern == null)
+						throw new IOException(source + ":" + lineNumber
+								+ ": Rule without pattern");
+					if (replacement == null)
+						// empty last line at the end of the file
+						replacement = "";
+					try {
+						rules.add(parseRule(line.substring(5), pattern,
+								replacement));
+					} catch (IllegalArgumentException e) {
+						throw new IOException(source + ":" + lineNumber + ": "
+								+ e.getMessage(), e);
+					}
+					lineNumber += 2;
+				} else {
+					throw new IOException(source + ":" + lineNumber
+							+ ": Unknown line " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return new CleanupRules(
+				preprocessing.toArray(new RuleGroup[preprocessing.size()]),
+				groups.toArray(new RuleGroup[groups.size()]));
+	}
+
+	/**
+	 * Parse an option which may have one of two values
+	 * 
+	 * @return True for the first value, false for the second one
+	 * @throws IOException
+	 *             If the option has another value
+	 */
+	private static boolean parseOption(String value, String first,
+			String second, String source, int lineNumber) throws IOException {
+		value = value.trim();
+		if (value.equals(first))
+			return true;
+		if (value.equals(second))
+			return false;
+		throw new IOException(source + ":" + lineNumber + ": Expected "
+				+ first + " or " + second + " but found " + value);
+	}
+
+	/**
+	 * Compile a single rule
+	 * 
+	 * @param options
+	 *            The flags and the fixpoint option of the rule
+	 * @param pattern
+	 *            The regex pattern
+	 * @param replacement
+	 *            The replacement with "\n" for line breaks
+	 * @return The compiled rule
+	 * @throws IllegalArgumentException
+	 *             If the flags or the pattern are invalid
+	 */
+	private static Rule parseRule(String options, String pattern,
+			String replacement) {
+		int flags = 0;
+		boolean fixpoint = false;
+		for (String option : options.trim().split(" +")) {
+			if (option.isEmpty())
+				continue;
+			if (option.equals("fixpoint")) {
+				fixpoint = true;
+				continue;
+			}
+			for (char f : option.toCharArray()) {
+				switch (f) {
+				case 'i':
+					flags |= Pattern.CASE_INSENSITIVE;
+					break;
+				case 'u':
+					flags |= Pattern.UNICODE_CASE;
+					break;
+				case 'm':
+					flags |= Pattern.MULTILINE;
+					break;
+				case 's':
+					flags |= Pattern.DOTALL;
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown flag " + f);
+				}
+			}
+		}
+		return new Rule(Pattern.compile(pattern, flags), replacement.replace(
+				"\\n", "\n"), fixpoint);
+	}
+
+	static class RuleGroup {
+		private final String summary;
+		private final boolean isFile;
+		private final Rule[] rules;
+
+		/**
+		 * A list of rules which are applied one after another
+		 * 
+		 * @param summary
+		 *            The text to be added to the edit summary if the group changes
+		 *            the text or null if the group only does minor cleanup
+		 * @param isFile
+		 *            If the group should only be applied to files
+		 * @param rules
+		 *            The rules of the group
+		 */
+		RuleGroup(String summary, boolean isFile, Rule[] rules) {
+			this.summary = summary;
+			this.isFile = isFile;
+			this.rules = rules;
+		}
+
+		String getSummary() {
+			return summary;
+		}
+
+		boolean isFile() {
+			return isFile;
+		}
+
+		/**
+		 * Apply all rules of the group to the text
+		 * 
+		 * @param text
+		 *            The text to be cleaned up
+		 * @return The very same String object if no rule changed the text
+		 */
+		String apply(String text) {
+			for (Rule r : rules)
+				text = r.apply(text);
+			return text;
+		}
+	}
+
+	static class Rule {
+		private final Pattern pattern;
+		private final String replacement;
+		private final boolean fixpoint;
+		// Matchers are not thread-safe, so each cleanup thread reuses its own
+		private final ThreadLocal<Matcher> matcher = new ThreadLocal<Matcher>() {
+			@Override
+			protected Matcher initialValue() {
+				return pattern.matcher("");
+			}
+		};
+
+		/**
+		 * A single replacement
+		 * 
+		 * @param pattern
+		 *            The compiled regex pattern
+		 * @param replacement
+		 *            All matches of the pattern are replaced by this
+		 * @param fixpoint
+		 *            If the replacement should be repeated until no change to the
+		 *            text can be made anymore (see WikiPage.multipleReplaceAll)
+		 */
+		Rule(Pattern pattern, String replacement, boolean fixpoint) {
+			this.pattern = pattern;
+			this.replacement = replacement;
+			this.fixpoint = fixpoint;
+		}
+
+		/**
+		 * Replace all matches of the pattern in the text
+		 * 
+		 * @param text
+		 *            The text to be considered
+		 * @return The very same String object if the text did not change
+		 * @throws IllegalStateException
+		 *             If a fixpoint rule keeps changing the text
+		 */
+		String apply(String text) {
+			if (!fixpoint)
+				return replaceAll(text);
+			int maximumReplacements = 1000;
+			while (true) {
+				String string2 = replaceAll(text);
+				if (string2 == text)
+					return text;
+				if (--maximumReplacements == 0)
+					throw new IllegalStateException(
+							"Too many replacements for regex=\n'" + pattern
+									+ "'\nand replacement=\n'" + replacement
+									+ "'");
+				text = string2;
+			}
+		}
+
+		/**
+		 * Replace all matches of the pattern in the text once. Each replacement is
+		 * compared with the text it replaces, so finding out if anything changed
+		 * does not need another pass over the whole text.
+		 * 
+		 * @param text
+		 *            The text to be considered
+		 * @return The very same String object if the text did not change
+		 */
+		private String replaceAll(String text) {
+			Matcher m = matcher.get().reset(text);
+			StringBuffer result = null;
+			boolean changed = false;
+			int appendPosition = 0;
+			while (m.find()) {
+				if (result == null)
+					result = new StringBuffer(text.length() + 16);
+				int replacementStart = result.length() + m.start()
+						- appendPosition;
+				m.appendReplacement(result, replacement);
+				appendPosition = m.end();
+				if (!changed)
+					changed = !regionEquals(result, replacementStart, text,
+							m.start(), m.end());
+			}
+			if (changed)
+				m.appendTail(result);
+			m.reset("");
+			return changed ? result.toString() : text;
+		}
+
+		/**
+		 * Compares the end of the buffer with a region of the text
+		 */
+		private static boolean regionEquals(StringBuffer buffer, int bufferStart,
+				String text, int start, int end) {
+			if (buffer.length() - bufferStart != end - start)
+				return false;
+			for (int i = start; i < end; ++i)
+				if (buffer.charAt(bufferStart++) != text.charAt(i))
+					return false;
+			return true;
+		}
+	}
+}
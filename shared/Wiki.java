@@ -22,12 +22,21 @@ package shared;
 
 import java.io.*;
 import java.net.*;
+import java.net.http.*;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.Normalizer;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.zip.GZIPInputStream;
+import javax.xml.stream.*;
+import javax.xml.stream.util.StreamReaderDelegate;
 
 import javax.security.auth.login.*;
 
@@ -402,28 +411,48 @@ public class Wiki implements Serializable
     private boolean wgCapitalLinks = true;
 
     // user management
-    private HashMap<String, String> cookies = new HashMap<String, String>(12);
-    private User user;
-    private int statuscounter = 0;
-
-    // various caches
-    private HashMap<String, Integer> namespaces = null;
-    private ArrayList<String> watchlist = null;
-
-    // preferences
-    private int max = 500;
-    private int slowmax = 50;
-    private int throttle = 10000; // throttle
-    private int maxlag = 5;
-    private int assertion = 0; // assertion mode
-    private int statusinterval = 100; // status check
-    private String useragent = "Wiki.java " + version;
-    private boolean zipped = true;
-    private boolean markminor = false, markbot = false;
-    private boolean resolveredirect = false;
-
-    // retry flag
-    private boolean retry = true;
+    private transient CookieManager cookies = new CookieManager();
+    private volatile User user;
+    private transient AtomicInteger statuscounter = new AtomicInteger();
+
+    // various caches, replaced as a whole so that readers need no locks
+    private volatile HashMap<String, Integer> namespaces = null;
+    private transient Object namespacesLock = new Object();
+    private volatile List<String> watchlist = null;
+    private volatile CategoryCache categoryCache = null;
+    private volatile Set<String> hiddenCategories = null;
+    private volatile long hiddenCategoriesLoaded = 0;
+    private volatile long hiddenCategoriesRefresh = 24L * 60 * 60 * 1000;
+    private transient Object hiddenCategoriesLock = new Object();
+
+    // preferences, may be changed while other threads use this wiki
+    private volatile int max = 500;
+    private volatile int slowmax = 50;
+    private volatile int throttle = 10000; // throttle
+    private volatile int maxlag = 5;
+    private volatile int assertion = 0; // assertion mode
+    private volatile int statusinterval = 100; // status check
+    private volatile String useragent = "Wiki.java " + version;
+    private volatile boolean zipped = true;
+    private volatile boolean markminor = false, markbot = false;
+    private volatile boolean resolveredirect = false;
+
+    // the edit token of the session, fetched on first use
+    private volatile String edittoken = null;
+
+    // retry flag, one per thread as the write methods retry by calling themselves
+    private transient ThreadLocal<Boolean> retry = newRetryFlag();
+
+    // the HTTP client, created on first use, keeps its connections alive
+    private transient volatile HttpClient client;
+    // runs the asynchronous methods, created on first use
+    private transient volatile Executor asyncExecutor;
+    // runs the submitted edits one after another, created on first use
+    private transient volatile ExecutorService editWriter;
+    private int asyncThreads = 8;
+    // admits all requests, see send()
+    private transient RequestScheduler scheduler = new RequestScheduler(20, 10000);
+    private int maxretries = 5;
 
     // ignore Information Logs
 	private boolean logInfo = true;
@@ -439,6 +468,13 @@ public class Wiki implements Serializable
     // log2(upload chunk size). Default = 22 => upload size = 4 MB. Disable
     // chunked uploads by setting a large value here (50 = 1 PB will do).
     private static final int LOG2_CHUNK_SIZE = 22; 
+    // parses the streamed responses, see fetchXML()
+    private static final XMLInputFactory XML_FACTORY = XMLInputFactory.newInstance();
+    static
+    {
+        XML_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+        XML_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
 
     // CONSTRUCTORS AND CONFIGURATION
 
@@ -541,8 +577,9 @@ public class Wiki implements Serializable
     }
 
     /**
-     *  Sets the editing throttle. Read requests are not throttled or restricted
-     *  in any way. Default is 10s.
+     *  Sets the editing throttle, the minimum time between the starts of two
+     *  edits (or other writes). Read requests are limited by
+     *  {@link #setRequestRate(double)}. Default is 10s.
      *  @param throttle the new throttle value in milliseconds
      *  @see #getThrottle
      *  @since 0.09
@@ -550,9 +587,33 @@ public class Wiki implements Serializable
     public void setThrottle(int throttle)
     {
         this.throttle = throttle;
+        scheduler.setWriteInterval(throttle);
         log(Level.CONFIG, "setThrottle", "Throttle set to " + throttle + " milliseconds");
     }
 
+    /**
+     *  Sets how many requests per second are sent at most, averaged over one
+     *  second (shorter bursts may be faster). Default: 20.
+     *  @param rate the maximum request rate, 0 = unlimited
+     *  @since 0.30
+     */
+    public void setRequestRate(double rate)
+    {
+        scheduler.setRequestRate(rate);
+        log(Level.CONFIG, "setRequestRate", "Request rate set to " + rate + " per second");
+    }
+
+    /**
+     *  Sets how often a request is repeated while the server is lagged (see
+     *  {@link #setMaxLag(int)}) or overloaded (HTTP 429 or 503). Default: 5.
+     *  @param retries the maximum number of retries of a request
+     *  @since 0.30
+     */
+    public void setMaxRetries(int retries)
+    {
+        maxretries = retries;
+    }
+
     /**
      *  Detects the $wgScriptpath wiki variable and sets the bot framework up
      *  to use it. You need not call this if you know the script path is
@@ -617,6 +678,32 @@ public class Wiki implements Serializable
         this.zipped = zipped;
     }
 
+    /**
+     *  Sets the executor which runs the asynchronous methods (e.g.
+     *  {@link #getPageTextAsync}). By default a pool of
+     *  {@link #setAsyncThreads(int) eight} daemon threads is used; since all
+     *  requests share the connections of one HTTP client, this is how many
+     *  requests are at most in flight at once.
+     *  @param executor the executor
+     *  @since 0.30
+     */
+    public void setAsyncExecutor(Executor executor)
+    {
+        asyncExecutor = executor;
+    }
+
+    /**
+     *  Sets the number of threads of the default executor of the asynchronous
+     *  methods. Must be called before the first asynchronous call. Default: 8.
+     *  @param threads the number of threads
+     *  @see #setAsyncExecutor
+     *  @since 0.30
+     */
+    public void setAsyncThreads(int threads)
+    {
+        asyncThreads = threads;
+    }
+
     /**
      *  Checks whether we are using GZip compression for GET requests.
      *  Default: true.
@@ -746,7 +833,7 @@ public class Wiki implements Serializable
         buffer.append(",statusCheckInterval=");
         buffer.append(statusinterval);
         buffer.append(",cookies=");
-        buffer.append(cookies);
+        buffer.append(getCookies());
         buffer.append("]");
         return buffer.toString();
     }
@@ -870,6 +957,7 @@ public class Wiki implements Serializable
         if (line.contains("result=\"Success\""))
         {
             user = new User(username);
+            edittoken = null;
             boolean apihighlimit = user.isAllowedTo("apihighlimits");
             if (apihighlimit)
             {
@@ -912,8 +1000,9 @@ public class Wiki implements Serializable
      */
     public synchronized void logout()
     {
-        cookies.clear();
+        cookies.getCookieStore().removeAll();
         user = null;
+        edittoken = null;
         max = 500;
         slowmax = 50;
         log(Level.INFO, "logout", "Logged out");
@@ -938,6 +1027,33 @@ public class Wiki implements Serializable
         logout(); // destroy local cookies
     }
 
+    /**
+     *  Gets the edit token of the current session. MediaWiki hands out one
+     *  token per session which is valid for all pages, so it is fetched once
+     *  and kept until the wiki rejects it or the user logs in or out.
+     *  @return the edit token
+     *  @throws IOException if a network error occurs
+     *  @throws CredentialExpiredException if cookies have expired
+     *  @since 0.30
+     */
+    public String getEditToken() throws IOException, CredentialExpiredException
+    {
+        String token = edittoken;
+        if (token != null)
+            return token;
+        String line = fetch(query + "meta=tokens&type=csrf", "getEditToken");
+        token = decode(parseAttribute(line, "csrftoken", 0));
+        // anonymous users get a token without the session part
+        if (token.equals("+\\") && user != null)
+        {
+            log(Level.SEVERE, "getEditToken", "Session has expired!");
+            logout();
+            throw new CredentialExpiredException("Cookies have expired.");
+        }
+        edittoken = token;
+        return token;
+    }
+
     /**
      *  Determines whether the current user has new messages. (A human would
      *  notice a yellow bar at the top of the page).
@@ -1243,35 +1359,8 @@ public class Wiki implements Serializable
                 }
 
                 // parse protection level
-                // expected form: <pr type="edit" level="sysop" expiry="infinity" cascade="" />
-                HashMap<String, Object> protectionstate = new HashMap<String, Object>();
-                for (int z = item.indexOf("<pr "); z > 0; z = item.indexOf("<pr ", ++z))
-                {
-                    String type = parseAttribute(item, "type", z);
-                    String level = parseAttribute(item, "level", z);
-                    protectionstate.put(type, level);
-                    //if (level != NO_PROTECTION)
-                        String expiry = parseAttribute(item, "expiry", z);
-                        if (expiry.equals("infinity"))
-                            protectionstate.put(type + "expiry", null);
-                        else
-                            protectionstate.put(type + "expiry", timestampToCalendar(expiry, true));
-                    // protected via cascade
-                    if (item.contains("source=\""))
-                        protectionstate.put("cascadesource", parseAttribute(item, "source", z));
-                }
-                // MediaWiki namespace
                 String parsedtitle = decode(parseAttribute(item, "title", 0));
-                if (namespace(parsedtitle) == MEDIAWIKI_NAMESPACE) 		
-                { 		
-                    protectionstate.put("edit", FULL_PROTECTION); 		
-                    protectionstate.put("move", FULL_PROTECTION); 		
-                    if (!exists) 		
-                        protectionstate.put("create", FULL_PROTECTION); 		
-                } 		
-
-                protectionstate.put("cascade", item.contains("cascade=\"\""));
-                tempmap.put("protection", protectionstate);
+                tempmap.put("protection", parseProtection(item, parsedtitle, exists));
 
                 tempmap.put("displaytitle", parseAttribute(item, "displaytitle", 0));
                 tempmap.put("token", parseAttribute(item, "edittoken", 0));
@@ -1295,7 +1384,120 @@ public class Wiki implements Serializable
         log(Level.INFO, "getPageInfo", "Successfully retrieved page info for " + Arrays.toString(pages));
         return info;
     }
+
+    /**
+     *  Gets miscellaneous page info without blocking the calling thread.
+     *  @param pages the pages to get info for
+     *  @return the result of {@link #getPageInfo(String[]) }, to come
+     *  @since 0.30
+     */
+    public CompletableFuture<HashMap[]> getPageInfoAsync(final String[] pages)
+    {
+        return async(new Callable<HashMap[]>()
+        {
+            public HashMap[] call() throws IOException
+            {
+                return getPageInfo(pages);
+            }
+        });
+    }
     
+    /**
+     *  Parses the protection state of a page from the <tt>inprop=protection</tt>
+     *  part of a prop=info query. See {@link #getPageInfo(String[]) }.
+     *  @param item the xml of a single page
+     *  @param title the (decoded) title of that page
+     *  @param exists whether that page exists
+     *  @return the protection state of the page
+     *  @throws IOException if a network error occurs (rare)
+     */
+    protected HashMap<String, Object> parseProtection(String item, String title, boolean exists) throws IOException
+    {
+        // only look at the protection element, the rest may contain page text
+        int start = item.indexOf("<protection");
+        int end = item.indexOf("</protection>", start);
+        item = start < 0 ? "" : item.substring(start, end < 0 ? item.indexOf('>', start) : end);
+
+        // expected form: <pr type="edit" level="sysop" expiry="infinity" cascade="" />
+        HashMap<String, Object> protectionstate = new HashMap<String, Object>();
+        for (int z = item.indexOf("<pr "); z >= 0; z = item.indexOf("<pr ", ++z))
+        {
+            String type = parseAttribute(item, "type", z);
+            String level = parseAttribute(item, "level", z);
+            protectionstate.put(type, level);
+            //if (level != NO_PROTECTION)
+                String expiry = parseAttribute(item, "expiry", z);
+                if (expiry.equals("infinity"))
+                    protectionstate.put(type + "expiry", null);
+                else
+                    protectionstate.put(type + "expiry", timestampToCalendar(expiry, true));
+            // protected via cascade
+            if (item.contains("source=\""))
+                protectionstate.put("cascadesource", parseAttribute(item, "source", z));
+        }
+        // MediaWiki namespace
+        if (namespace(title) == MEDIAWIKI_NAMESPACE)
+        {
+            protectionstate.put("edit", FULL_PROTECTION);
+            protectionstate.put("move", FULL_PROTECTION);
+            if (!exists)
+                protectionstate.put("create", FULL_PROTECTION);
+        }
+
+        protectionstate.put("cascade", item.contains("cascade=\"\""));
+        return protectionstate;
+    }
+
+    /**
+     *  Parses the protection state of a page like {@link #parseProtection(String,
+     *  String, boolean)}, from a parser from {@link #fetchXML}.
+     *  @param xml the parser, at the start of the protection element (which is
+     *  read up to its end) or elsewhere (nothing is read then, as for a page
+     *  without protection element)
+     *  @param title the title of the page
+     *  @param exists whether that page exists
+     *  @return the protection state of the page
+     *  @throws IOException if a network error occurs (rare)
+     *  @throws XMLStreamException if the response is no well-formed XML
+     *  @since 0.30
+     */
+    protected HashMap<String, Object> parseProtection(XMLStreamReader xml, String title, boolean exists) throws IOException, XMLStreamException
+    {
+        // expected form: <pr type="edit" level="sysop" expiry="infinity" cascade="" />
+        HashMap<String, Object> protectionstate = new HashMap<String, Object>();
+        boolean cascade = false;
+        if (xml.isStartElement() && xml.getLocalName().equals("protection"))
+        {
+            while (xml.hasNext() && !(xml.next() == XMLStreamConstants.END_ELEMENT && xml.getLocalName().equals("protection")))
+            {
+                if (!xml.isStartElement() || !xml.getLocalName().equals("pr"))
+                    continue;
+                String type = xml.getAttributeValue(null, "type");
+                protectionstate.put(type, xml.getAttributeValue(null, "level"));
+                String expiry = xml.getAttributeValue(null, "expiry");
+                if (expiry.equals("infinity"))
+                    protectionstate.put(type + "expiry", null);
+                else
+                    protectionstate.put(type + "expiry", timestampToCalendar(expiry, true));
+                // protected via cascade
+                if (xml.getAttributeValue(null, "source") != null)
+                    protectionstate.put("cascadesource", xml.getAttributeValue(null, "source"));
+                cascade |= "".equals(xml.getAttributeValue(null, "cascade"));
+            }
+        }
+        // MediaWiki namespace
+        if (namespace(title) == MEDIAWIKI_NAMESPACE)
+        {
+            protectionstate.put("edit", FULL_PROTECTION);
+            protectionstate.put("move", FULL_PROTECTION);
+            if (!exists)
+                protectionstate.put("create", FULL_PROTECTION);
+        }
+
+        protectionstate.put("cascade", cascade);
+        return protectionstate;
+    }
+
     /**
      *  Returns the namespace a page is in. No need to override this to 
      *  add custom namespaces, though you may want to define static fields e.g.
@@ -1311,13 +1513,13 @@ public class Wiki implements Serializable
      */
     public int namespace(String title) throws IOException
     {
-        // cache this, as it will be called often
-        if (namespaces == null)
-            populateNamespaceCache();
-        
         // sanitise
         if (!title.contains(":"))
             return MAIN_NAMESPACE;
+
+        // cache this, as it will be called often
+        if (namespaces == null)
+            populateNamespaceCache();
         String namespace = title.substring(0, title.indexOf(':'));
 
         // all wiki namespace test
@@ -1383,20 +1585,27 @@ public class Wiki implements Serializable
      */
     protected void populateNamespaceCache() throws IOException
     {
-        String line = fetch(query + "meta=siteinfo&siprop=namespaces", "namespace");
-        namespaces = new HashMap<String, Integer>(30);
-        
-        // xml form: <ns id="-2" ... >Media</ns> or <ns id="0" ... />
-        for (int a = line.indexOf("<ns "); a > 0; a = line.indexOf("<ns ", ++a))
+        synchronized (namespacesLock)
         {
-            String ns = parseAttribute(line, "id", a);
-            int b = line.indexOf('>', a) + 1;
-            int c = line.indexOf('<', b);
-            namespaces.put(normalize(decode(line.substring(b, c))), new Integer(ns));
+            // another thread may have populated it meanwhile
+            if (namespaces != null)
+                return;
+            String line = fetch(query + "meta=siteinfo&siprop=namespaces", "namespace");
+            HashMap<String, Integer> temp = new HashMap<String, Integer>(30);
+
+            // xml form: <ns id="-2" ... >Media</ns> or <ns id="0" ... />
+            for (int a = line.indexOf("<ns "); a > 0; a = line.indexOf("<ns ", ++a))
+            {
+                String ns = parseAttribute(line, "id", a);
+                int b = line.indexOf('>', a) + 1;
+                int c = line.indexOf('<', b);
+                temp.put(normalize(decode(line.substring(b, c))), new Integer(ns));
+            }
+            namespaces = temp;
         }
 
         log(Level.INFO, "namespace", "Successfully retrieved namespace list (" + namespaces.size() + " namespaces)");
-     }
+    }
     
     /**
      *  Determines whether a series of pages exist. 
@@ -1440,7 +1649,122 @@ public class Wiki implements Serializable
         log(Level.INFO, "getPageText", "Successfully retrieved text of " + title);
         return temp;
     }
+
+    /**
+     *  Gets the raw wikicode for a page without blocking the calling thread.
+     *  @param title the title of the page
+     *  @return the result of {@link #getPageText}, to come. Fails with the
+     *  exceptions thrown there.
+     *  @since 0.30
+     */
+    public CompletableFuture<String> getPageTextAsync(final String title)
+    {
+        return async(new Callable<String>()
+        {
+            public String call() throws IOException
+            {
+                return getPageText(title);
+            }
+        });
+    }
     
+    /**
+     *  Gets the raw wikicode of the top revision of many pages at once. The
+     *  titles are requested in batches of <tt>slowmax</tt> titles per request.
+     *  Returns:
+     *  <pre>
+     *  {
+     *      "exists"    => true            , // whether the page exists (Boolean)
+     *      "text"      => "{{Information" , // the raw wikicode of the top revision (String), null
+     *                                       // if the page does not exist
+     *      "lastrevid" => 123456789L      , // the revid of the top revision (Long), -1L if the page
+     *                                       // does not exist
+     *      "timestamp" => makeCalendar()    // when the top revision was made (Calendar), null if
+     *                                       // the page does not exist
+     *  }
+     *  </pre>
+     *  Pages which do not exist (e.g. because they were deleted) do not cause
+     *  an exception, check "exists" instead.
+     *
+     *  @param titles the titles of the pages
+     *  @return (see above). The HashMaps will come out in the same order as the
+     *  processed array.
+     *  @throws UnsupportedOperationException if you try to retrieve the text of a
+     *  Special: or Media: page
+     *  @throws IOException if a network error occurs
+     *  @see #getPageText
+     */
+    public HashMap[] getPageTexts(String[] titles) throws IOException
+    {
+        String[] normalized = new String[titles.length];
+        for (int i = 0; i < titles.length; i++)
+        {
+            // pitfall check
+            if (namespace(titles[i]) < 0)
+                throw new UnsupportedOperationException("Cannot retrieve Special: or Media: pages!");
+            normalized[i] = normalize(titles[i]);
+        }
+        HashMap[] ret = new HashMap[titles.length];
+        String url = query + "prop=revisions&rvprop=content%7Cids%7Ctimestamp&titles=";
+        for (String temp : constructTitleString(titles))
+        {
+            // large texts are spread over several responses
+            String rvcontinue = "";
+            do
+            {
+                String line = fetch(url + temp + rvcontinue, "getPageTexts");
+                if (line.contains("rvcontinue=\""))
+                    rvcontinue = "&rvcontinue=" + URLEncoder.encode(parseAttribute(line, "rvcontinue", 0), "UTF-8");
+                else
+                    rvcontinue = null;
+
+                // form: <page pageid="239098" ns="6" title="File:A.jpg"><revisions>
+                // <rev revid="1" parentid="0" timestamp="2013-01-01T00:00:00Z" xml:space="preserve">text</rev>
+                // </revisions></page>
+                // or  : <page ns="6" title="File:B.jpg" missing="" />
+                for (int j = line.indexOf("<page "); j > 0; j = line.indexOf("<page ", ++j))
+                {
+                    int x = line.indexOf('>', j);
+                    String header = line.substring(j, x);
+                    String item = header.endsWith("/") ? header : line.substring(j, line.indexOf("</page>", x));
+                    HashMap<String, Object> tempmap = new HashMap<String, Object>(10);
+
+                    int a = item.indexOf("<rev ");
+                    boolean exists = !header.contains("missing=\"\"") && !header.contains("invalid=\"\"");
+                    // an existing page without revision comes with a later response
+                    if (exists && a < 0)
+                        continue;
+                    tempmap.put("exists", exists);
+                    if (exists)
+                    {
+                        int b = item.indexOf('>', a);
+                        String rev = item.substring(a, b);
+                        tempmap.put("lastrevid", Long.parseLong(parseAttribute(rev, "revid", 0)));
+                        tempmap.put("timestamp", timestampToCalendar(parseAttribute(rev, "timestamp", 0), true));
+                        // <rev ... /> denotes an empty page
+                        tempmap.put("text", rev.endsWith("/") ? "" : decode(item.substring(b + 1, item.indexOf("</rev>", b))));
+                    }
+                    else
+                    {
+                        tempmap.put("text", null);
+                        tempmap.put("lastrevid", -1L);
+                        tempmap.put("timestamp", null);
+                    }
+
+                    // reorder
+                    String parsedtitle = decode(parseAttribute(header, "title", 0));
+                    for (int i = 0; i < titles.length; i++)
+                        if (normalized[i].equals(parsedtitle))
+                            ret[i] = tempmap;
+                }
+            }
+            while (rvcontinue != null);
+        }
+
+        log(Level.INFO, "getPageTexts", "Successfully retrieved text of " + titles.length + " pages");
+        return ret;
+    }
+
     /**
      * Gets the number of global usages for a file.
      * 
@@ -1634,96 +1958,202 @@ public class Wiki implements Serializable
      *  @see #getPageText
      *  @since 0.17
      */
-    public synchronized void edit(String title, String text, String summary, boolean minor, boolean bot,
+    public void edit(String title, String text, String summary, boolean minor, boolean bot,
         int section, Calendar basetime) throws IOException, LoginException
+    {
+        edit(title, text, summary, minor, bot, section, 0, basetime);
+    }
+
+    /**
+     *  Edits a page by setting its text to the supplied value, checking for
+     *  edit conflicts against the revision the text is based on. This method
+     *  is thread safe and blocks for a minimum time as specified by the
+     *  throttle. Apart from the edit itself no request is made: the edit
+     *  token is cached for the session and protection is left to the wiki,
+     *  so pass the revision id and timestamp captured when the text was
+     *  fetched (e.g. "lastrevid" and "timestamp" of
+     *  <tt>listAllFilesWithContent()</tt>).
+     *
+     *  @param title the title of the page
+     *  @param text the text of the page
+     *  @param summary the edit summary. See [[Help:Edit summary]]. Summaries
+     *  longer than 200 characters are truncated server-side.
+     *  @param minor whether the edit should be marked as minor, See
+     * [[Help:Minor edit]].
+     *  @param bot whether to mark the edit as a bot edit (ignored if one does
+     *  not have the necessary permissions)
+     *  @param section the section to edit. Use -1 to specify a new section and
+     *  -2 to disable section editing.
+     *  @param baserevid the id of the revision on which <tt>text</tt> is based,
+     *  0 disables this
+     *  @param basetime the timestamp of the revision on which <tt>text</tt> is
+     *  based, used to check for edit conflicts. <tt>null</tt> disables this.
+     *  @throws IOException if a network error occurs
+     *  @throws FileNotFoundException if the text is based on a revision and
+     *  the page was deleted meanwhile
+     *  @throws ConcurrentModificationException if the page was changed since
+     *  the base revision and the wiki could not merge the edit
+     *  @throws AccountLockedException if user is blocked
+     *  @throws CredentialExpiredException if cookies have expired
+     *  @throws CredentialException if page is protected and we can't edit it
+     *  @throws AssertionError if the user is not a bot although the
+     *  assertion mode requires it
+     *  @throws UnsupportedOperationException if you try to edit a Special: or
+     *  Media: page
+     *  @see #getEditToken
+     *  @since 0.30
+     */
+    public void edit(String title, String text, String summary, boolean minor, boolean bot,
+        int section, long baserevid, Calendar basetime) throws IOException, LoginException
     {
         // @revised 0.16 to use API edit. No more screenscraping - yay!
         // @revised 0.17 section editing
         // @revised 0.25 optional bot flagging
-        long start = System.currentTimeMillis();
-        statusCheck();
-
-        // protection and token
-        HashMap info = getPageInfo(title);
-        if (!checkRights(info, "edit") || (Boolean)info.get("exists") && !checkRights(info, "create"))
-        {
-            CredentialException ex = new CredentialException("Permission denied: page is protected.");
-            log(Level.WARNING, "edit", "Cannot edit - permission denied. " + ex);
-            throw ex;
-        }
-        String wpEditToken = (String)info.get("token");
-
-        // post data
-        StringBuilder buffer = new StringBuilder(300000);
-        buffer.append("title=");
-        buffer.append(URLEncoder.encode(normalize(title), "UTF-8"));
-        buffer.append("&text=");
-        buffer.append(URLEncoder.encode(text, "UTF-8"));
-        buffer.append("&summary=");
-        buffer.append(URLEncoder.encode(summary, "UTF-8"));
-        buffer.append("&token=");
-        buffer.append(URLEncoder.encode(wpEditToken, "UTF-8"));
-        if (basetime != null)
-        {
-            buffer.append("&starttimestamp=");
-            buffer.append(calendarToTimestamp((Calendar)info.get("timestamp")));
-            buffer.append("&basetimestamp=");
-            // I wonder if the time getPageText() was called suffices here
-            buffer.append(calendarToTimestamp(basetime));
-        }
-        if (minor)
-            buffer.append("&minor=1");
-        if (bot && user.isAllowedTo("bot"))
-            buffer.append("&bot=1");
-        if (section == -1)
-            buffer.append("&section=new");
-        else if (section != -2)
-        {
-            buffer.append("&section=");
-            buffer.append(section);
-        }
-        String response = post(apiUrl + "action=edit", buffer.toString(), "edit");
+        // @revised 0.30 cached token, the wiki checks protection and login
+        boolean again = false;
+        scheduler.acquire(true);
+        synchronized (this)
+        {
+            statusCheck();
+
+            // post data
+            StringBuilder buffer = new StringBuilder(300000);
+            buffer.append("title=");
+            buffer.append(URLEncoder.encode(normalize(title), "UTF-8"));
+            buffer.append("&text=");
+            buffer.append(URLEncoder.encode(text, "UTF-8"));
+            buffer.append("&summary=");
+            buffer.append(URLEncoder.encode(summary, "UTF-8"));
+            if (baserevid > 0)
+            {
+                buffer.append("&baserevid=");
+                buffer.append(baserevid);
+            }
+            if (basetime != null)
+            {
+                buffer.append("&basetimestamp=");
+                buffer.append(calendarToTimestamp(basetime));
+            }
+            // text based on a revision must not recreate a page deleted meanwhile
+            if (baserevid > 0 || basetime != null)
+                buffer.append("&nocreate=1");
+            if (minor)
+                buffer.append("&minor=1");
+            if (bot && user.isAllowedTo("bot"))
+                buffer.append("&bot=1");
+            if (section == -1)
+                buffer.append("&section=new");
+            else if (section != -2)
+            {
+                buffer.append("&section=");
+                buffer.append(section);
+            }
+            // let the wiki check that we are still logged in (and a bot)
+            if ((assertion & ASSERT_BOT) == ASSERT_BOT)
+                buffer.append("&assert=bot");
+            else if (user != null)
+                buffer.append("&assert=user");
+            // the token goes last, so that a truncated request is rejected
+            String data = buffer.toString();
+            String response = post(apiUrl + "action=edit", data + "&token=" + URLEncoder.encode(getEditToken(), "UTF-8"), "edit");
+            if (response.contains("error code=\"badtoken\""))
+            {
+                // the session has a new token
+                log(Level.INFO, "edit", "Edit token expired, fetching a new one");
+                edittoken = null;
+                response = post(apiUrl + "action=edit", data + "&token=" + URLEncoder.encode(getEditToken(), "UTF-8"), "edit");
+            }
 
-        // done
-        if (response.contains("error code=\"editconflict\""))
-        {
-            log(Level.WARNING, "edit", "Edit conflict on " + title);
-            return; // hmmm, perhaps we should throw an exception. I'm open to ideas.
-        }
-        try
-        {
-            checkErrors(response, "edit");
+            // done
+            if (response.contains("error code=\"editconflict\""))
+            {
+                log(Level.WARNING, "edit", "Edit conflict on " + title);
+                throw new ConcurrentModificationException("Edit conflict on " + title);
+            }
+            if (response.contains("error code=\"missingtitle\""))
+            {
+                log(Level.WARNING, "edit", title + " was deleted meanwhile");
+                throw new FileNotFoundException(title + " was deleted meanwhile");
+            }
+            try
+            {
+                checkErrors(response, "edit");
+            }
+            catch (IOException e)
+            {
+                // retry once, see below
+                if (retry.get())
+                {
+                    log(Level.WARNING, "edit", "Exception: " + e.getMessage() + " Retrying...");
+                    again = true;
+                }
+                else
+                {
+                    log(Level.SEVERE, "edit", "EXCEPTION: " + e);
+                    throw e;
+                }
+            }
+            if (!again)
+                log(Level.INFO, "edit", "Successfully edited " + title);
         }
-        catch (IOException e)
+        // the retry waits for a write slot of its own, without holding the lock
+        if (again)
         {
-            // retry once
-            if (retry)
+            retry.set(false);
+            try
             {
-                retry = false;
-                log(Level.WARNING, "edit", "Exception: " + e.getMessage() + " Retrying...");
-                edit(title, text, summary, minor, bot, section, basetime);
+                edit(title, text, summary, minor, bot, section, baserevid, basetime);
             }
-            else
+            finally
             {
-                log(Level.SEVERE, "edit", "EXCEPTION: " + e);
-                throw e;
+                retry.set(true);
             }
         }
-        if (retry)
-            log(Level.INFO, "edit", "Successfully edited " + title);
-        retry = true;
+    }
 
-        // throttle
-        try
-        {
-            long time = throttle - System.currentTimeMillis() + start;
-            if (time > 0)
-                Thread.sleep(time);
-        }
-        catch (InterruptedException e)
+    /**
+     *  Queues an edit, see {@link #edit(String, String, String, boolean,
+     *  boolean, int, long, Calendar)}. A single writer thread makes the queued edits
+     *  one after another at the pace of the throttle, so the caller (and any
+     *  reader) goes on at once.
+     *
+     *  @param title the title of the page
+     *  @param text the text of the page
+     *  @param summary the edit summary
+     *  @param minor whether the edit should be marked as minor
+     *  @param bot whether to mark the edit as a bot edit
+     *  @param section the section to edit, -1 = new section, -2 = whole page
+     *  @param baserevid the id of the revision on which <tt>text</tt> is
+     *  based, 0 disables this
+     *  @param basetime the timestamp of the revision on which <tt>text</tt> is
+     *  based, <tt>null</tt> disables the edit conflict check
+     *  @return completes when the edit is done or fails with the exception
+     *  thrown by <tt>edit()</tt>
+     *  @since 0.30
+     */
+    public CompletableFuture<Void> submitEdit(final String title, final String text, final String summary, final boolean minor,
+        final boolean bot, final int section, final long baserevid, final Calendar basetime)
+    {
+        return runOn(getEditWriter(), new Callable<Void>()
         {
-            // nobody cares
-        }
+            public Void call() throws IOException, LoginException
+            {
+                edit(title, text, summary, minor, bot, section, baserevid, basetime);
+                return null;
+            }
+        });
+    }
+
+    /**
+     *  Gets the number of submitted edits which are not done yet.
+     *  @return (see above)
+     *  @see #submitEdit
+     *  @since 0.30
+     */
+    public int getQueuedEdits()
+    {
+        ExecutorService writer = editWriter;
+        return writer == null ? 0 : ((ThreadPoolExecutor)writer).getQueue().size();
     }
 
     /**
@@ -1787,68 +2217,71 @@ public class Wiki implements Serializable
      *  @throws AccountLockedException if user is blocked
      *  @since 0.24
      */
-    public synchronized void delete(String title, String reason) throws IOException, LoginException
+    public void delete(String title, String reason) throws IOException, LoginException
     {
-        long start = System.currentTimeMillis();
-        statusCheck();
-
-        if (user == null || !user.isAllowedTo("delete"))
-            throw new CredentialNotFoundException("Cannot delete: Permission denied");
-
-        // edit token
-        HashMap info = getPageInfo(title);
-        if (!(Boolean)info.get("exists"))
+        boolean again = false;
+        scheduler.acquire(true);
+        synchronized (this)
         {
-            log(Level.INFO, "delete", "Page \"" + title + "\" does not exist.");
-            return;
-        }
-        String deleteToken = (String)info.get("token");
+            statusCheck();
 
-        // post data
-        StringBuilder buffer = new StringBuilder(500);
-        buffer.append("title=");
-        buffer.append(URLEncoder.encode(normalize(title), "UTF-8"));
-        buffer.append("&reason=");
-        buffer.append(URLEncoder.encode(reason, "UTF-8"));
-        buffer.append("&token=");
-        buffer.append(URLEncoder.encode(deleteToken, "UTF-8"));
-        String response = post(apiUrl + "action=delete", buffer.toString(), "delete");
+            if (user == null || !user.isAllowedTo("delete"))
+                throw new CredentialNotFoundException("Cannot delete: Permission denied");
 
-        // done
-        try
-        {
-            if (!response.contains("<delete title="))
-                checkErrors(response, "delete");
-        }
-        catch (IOException e)
-        {
-            // retry once
-            if (retry)
+            // edit token
+            HashMap info = getPageInfo(title);
+            if (!(Boolean)info.get("exists"))
             {
-                retry = false;
-                log(Level.WARNING, "delete", "Exception: " + e.getMessage() + " Retrying...");
-                delete(title, reason);
+                log(Level.INFO, "delete", "Page \"" + title + "\" does not exist.");
+                return;
             }
-            else
+            String deleteToken = (String)info.get("token");
+
+            // post data
+            StringBuilder buffer = new StringBuilder(500);
+            buffer.append("title=");
+            buffer.append(URLEncoder.encode(normalize(title), "UTF-8"));
+            buffer.append("&reason=");
+            buffer.append(URLEncoder.encode(reason, "UTF-8"));
+            buffer.append("&token=");
+            buffer.append(URLEncoder.encode(deleteToken, "UTF-8"));
+            String response = post(apiUrl + "action=delete", buffer.toString(), "delete");
+
+            // done
+            try
             {
-                log(Level.SEVERE, "delete", "EXCEPTION: " + e);
-                throw e;
+                if (!response.contains("<delete title="))
+                    checkErrors(response, "delete");
             }
+            catch (IOException e)
+            {
+                // retry once, see below
+                if (retry.get())
+                {
+                    log(Level.WARNING, "delete", "Exception: " + e.getMessage() + " Retrying...");
+                    again = true;
+                }
+                else
+                {
+                    log(Level.SEVERE, "delete", "EXCEPTION: " + e);
+                    throw e;
+                }
+            }
+            if (!again)
+                log(Level.INFO, "delete", "Successfully deleted " + title);
         }
-        if (retry)
-            log(Level.INFO, "delete", "Successfully deleted " + title);
-        retry = true;
-
-        // throttle
-        try
-        {
-            long time = throttle - System.currentTimeMillis() + start;
-            if (time > 0)
-                Thread.sleep(time);
-        }
-        catch (InterruptedException e)
+        // the retry waits for a write slot of its own, without holding the lock
+        if (again)
         {
-            // nobody cares
+            retry.set(false);
+            try
+            {
+                delete(title, reason);
+            }
+            finally
+            {
+                retry.set(true);
+            }
         }
     }
 
@@ -1918,39 +2351,426 @@ public class Wiki implements Serializable
      * category if sortkey is true. The sortkey would then be appended to
      * the element of the returned string array (separated by "|").
      * Capped at <tt>max</tt> number of categories, there's no reason why
-     * there should be more than that.
+     * there should be more than that. The categories of categories are taken
+     * from the category cache if it is enabled.
      * 
      * @param title a page
      * @param sortkey return a sortkey as well
      * @param ignoreHidden skip hidden categories
      * @return the list of categories that the page is in
      * @throws IOException if a network error occurs
+     * @see #setCategoryCache
      * @since 0.27.1
      */
-    
-	public String[] getCategories(String title, boolean sortkey, boolean ignoreHidden) throws IOException
-	{
-        String url = query + "prop=categories&cllimit=max&clprop=sortkey%7Chidden&titles=" + URLEncoder.encode(title, "UTF-8");
-        String line = fetch(url, "getCategories");
+    public String[] getCategories(String title, boolean sortkey, boolean ignoreHidden) throws IOException
+    {
+        return getCategories(title, sortkey, ignoreHidden, true);
+    }
 
-        // xml form: <cl ns="14" title="Category:1879 births" sortkey=(long string) sortkeyprefix="" />
-        // or      : <cl ns="14" title="Category:Images for cleanup" sortkey=(long string) sortkeyprefix="Borders" hidden="" />
-        ArrayList<String> categories = new ArrayList<String>(750);
-        int a, b; // beginIndex and endIndex
-        for ( a = line.indexOf("<cl "); a > 0; a = b )
-        {
-        	b = line.indexOf("<cl ", a+1);
-        	if(ignoreHidden && line.substring(a, (b>0)? b : line.length()).contains("hidden"))
-        		continue;
-        	String category = decode(parseAttribute(line, "title", a));
+    /**
+     * Gets the list of categories a particular page is in, see
+     * {@link #getCategories(String, boolean, boolean)}.
+     * 
+     * @param title a page
+     * @param sortkey return a sortkey as well
+     * @param ignoreHidden skip hidden categories
+     * @param useCache whether the category cache may be used (false = always
+     * ask the wiki)
+     * @return the list of categories that the page is in
+     * @throws IOException if a network error occurs
+     * @since 0.30
+     */
+    public String[] getCategories(String title, boolean sortkey, boolean ignoreHidden, boolean useCache) throws IOException
+    {
+        CategoryCache cache = useCache ? categoryCache : null;
+        if (cache != null && !title.startsWith("Category:"))
+            cache = null; // only the parents of categories are worth caching
+        CategoryCache.Parents entry = cache == null ? null : cache.get(title);
+        if (entry == null)
+        {
+            String url = query + "prop=categories&cllimit=max&clprop=sortkey%7Chidden&titles=" + URLEncoder.encode(title, "UTF-8");
+            String line = fetch(url, "getCategories");
+            LinkedHashMap<String, Boolean> categories = new LinkedHashMap<String, Boolean>();
+            HashMap<String, String> sortkeys = new HashMap<String, String>();
+            parseCategories(line, categories, sortkeys);
+            entry = new CategoryCache.Parents(categories, sortkeys);
+            if (cache != null)
+                cache.put(title, entry);
+            log(Level.INFO, "getCategories", "Successfully retrieved categories of " + title + " (" + categories.size() + " categories)");
+        }
+
+        ArrayList<String> categories = new ArrayList<String>(entry.categories.size());
+        for (Map.Entry<String, Boolean> category : entry.categories.entrySet())
+        {
+            if (ignoreHidden && category.getValue())
+                continue;
+            String name = category.getKey();
             if (sortkey)
-                category += ("|" + parseAttribute(line, "sortkeyprefix", a));
-            categories.add(category);
+                name += ("|" + entry.sortkeys.get(name));
+            categories.add(name);
         }
-        int temp = categories.size();
-        log(Level.INFO, "getCategories", "Successfully retrieved categories of " + title + " (" + temp + " categories)");
-        return categories.toArray(new String[temp]);
-	}
+        return categories.toArray(new String[categories.size()]);
+    }
+
+    /**
+     *  Gets the categories of many pages at once (<tt>slowmax</tt> titles per
+     *  request). The categories of categories are taken from the category
+     *  cache if it is enabled. Each page comes as:
+     *  <pre>
+     *  {
+     *      "title"           => "File:A.jpg"         , // the title of the page (String)
+     *      "categories"      => {"Category:B" => true, ...}
+     *                                                  // the categories of the page mapped to whether
+     *                                                  // they are hidden (LinkedHashMap&lt;String, Boolean&gt;)
+     *      "sortkeyprefixes" => {"Category:B" => "", ...}
+     *                                                  // the sortkey prefix of each category
+     *                                                  // (HashMap&lt;String, String&gt;)
+     *  }
+     *  </pre>
+     *  Pages which do not exist have no categories.
+     *
+     *  @param titles the titles of the pages
+     *  @return (see above). The HashMaps will come out in the same order as the
+     *  processed array.
+     *  @throws IOException if a network error occurs
+     *  @see #getCategories(String, boolean, boolean)
+     *  @since 0.30
+     */
+    public HashMap[] getCategories(String[] titles) throws IOException
+    {
+        return getCategories(titles, true);
+    }
+
+    /**
+     *  Gets the categories of many pages at once, see
+     *  {@link #getCategories(String[])}.
+     *
+     *  @param titles the titles of the pages
+     *  @param useCache whether the category cache may be used (false = always
+     *  ask the wiki)
+     *  @return (see above)
+     *  @throws IOException if a network error occurs
+     *  @since 0.30
+     */
+    public HashMap[] getCategories(String[] titles, boolean useCache) throws IOException
+    {
+        CategoryCache cache = useCache ? categoryCache : null;
+        String[] normalized = new String[titles.length];
+        HashMap<String, CategoryCache.Parents> parents = new HashMap<String, CategoryCache.Parents>(titles.length * 2);
+        LinkedHashSet<String> missing = new LinkedHashSet<String>();
+        for (int i = 0; i < titles.length; i++)
+        {
+            normalized[i] = normalize(titles[i]);
+            if (parents.containsKey(normalized[i]) || missing.contains(normalized[i]))
+                continue; // duplicate
+            CategoryCache.Parents entry = null;
+            if (cache != null && normalized[i].startsWith("Category:"))
+                entry = cache.get(normalized[i]);
+            if (entry != null)
+                parents.put(normalized[i], entry);
+            else
+                missing.add(normalized[i]);
+        }
+
+        String url = query + "prop=categories&cllimit=max&clprop=sortkey%7Chidden&titles=";
+        HashMap<String, CategoryCache.Parents> fetched = new HashMap<String, CategoryCache.Parents>(missing.size() * 2);
+        for (String temp : constructTitleString(missing.toArray(new String[missing.size()])))
+        {
+            String clcontinue = "";
+            do
+            {
+                // xml form: <page ns="14" title="Category:A"><categories><cl ... /></categories></page>
+                // or      : <page ns="14" title="Category:B" missing="" />
+                XMLStreamReader xml = fetchXML(url + temp + clcontinue, "getCategories");
+                clcontinue = "";
+                try
+                {
+                    CategoryCache.Parents entry = null;
+                    while (nextElement(xml))
+                    {
+                        String element = xml.getLocalName();
+                        if (element.equals("page"))
+                        {
+                            String title = xml.getAttributeValue(null, "title");
+                            entry = fetched.get(title);
+                            if (entry == null)
+                            {
+                                entry = new CategoryCache.Parents(new LinkedHashMap<String, Boolean>(), new HashMap<String, String>());
+                                fetched.put(title, entry);
+                            }
+                        }
+                        else if (element.equals("cl") && entry != null)
+                        {
+                            String category = xml.getAttributeValue(null, "title");
+                            String prefix = xml.getAttributeValue(null, "sortkeyprefix");
+                            entry.categories.put(category, xml.getAttributeValue(null, "hidden") != null);
+                            entry.sortkeys.put(category, prefix == null ? "" : prefix);
+                        }
+                        // categories of a batch may be split over several responses
+                        else if (xml.getAttributeValue(null, "clcontinue") != null)
+                            clcontinue = "&clcontinue=" + URLEncoder.encode(xml.getAttributeValue(null, "clcontinue"), "UTF-8");
+                    }
+                }
+                catch (XMLStreamException ex)
+                {
+                    throw new IOException("Could not parse the categories", ex);
+                }
+                finally
+                {
+                    closeXML(xml);
+                }
+            }
+            while (!clcontinue.isEmpty());
+        }
+        for (Map.Entry<String, CategoryCache.Parents> entry : fetched.entrySet())
+        {
+            parents.put(entry.getKey(), entry.getValue());
+            if (cache != null && entry.getKey().startsWith("Category:"))
+                cache.put(entry.getKey(), entry.getValue());
+        }
+
+        HashMap[] ret = new HashMap[titles.length];
+        for (int i = 0; i < titles.length; i++)
+        {
+            CategoryCache.Parents entry = parents.get(normalized[i]);
+            HashMap<String, Object> tempmap = new HashMap<String, Object>(6);
+            tempmap.put("title", normalized[i]);
+            // copies, the cached maps must not be changed by the caller
+            tempmap.put("categories", entry == null ? new LinkedHashMap<String, Boolean>() : new LinkedHashMap<String, Boolean>(entry.categories));
+            tempmap.put("sortkeyprefixes", entry == null ? new HashMap<String, String>() : new HashMap<String, String>(entry.sortkeys));
+            ret[i] = tempmap;
+        }
+        log(Level.INFO, "getCategories", "Successfully retrieved categories of " + titles.length + " pages (" + missing.size() + " requested)");
+        return ret;
+    }
+
+    /**
+     *  Gets the categories of many pages at once without blocking the calling
+     *  thread.
+     *
+     *  @param titles the titles of the pages
+     *  @return the result of {@link #getCategories(String[])}, to come
+     *  @since 0.30
+     */
+    public CompletableFuture<HashMap[]> getCategoriesAsync(final String[] titles)
+    {
+        return async(new Callable<HashMap[]>()
+        {
+            public HashMap[] call() throws IOException
+            {
+                return getCategories(titles);
+            }
+        });
+    }
+
+    /**
+     *  Checks whether a category is hidden, using the set of hidden categories
+     *  (see {@link #getHiddenCategories()}).
+     *
+     *  @param category the category (with "Category:" prefix)
+     *  @return whether the category is a member of [[Category:Hidden categories]]
+     *  @throws IOException if a network error occurs while (re)loading the set
+     *  @since 0.30
+     */
+    public boolean isHiddenCategory(String category) throws IOException
+    {
+        return getHiddenCategories().contains(category);
+    }
+
+    /**
+     *  Gets all hidden categories, i.e. the subcategories of [[Category:Hidden
+     *  categories]]. The set is loaded once and again after the refresh interval,
+     *  so checking whether a category is hidden needs no request.
+     *
+     *  @return the hidden categories (with "Category:" prefix, unmodifiable)
+     *  @throws IOException if a network error occurs
+     *  @see #setHiddenCategoriesRefreshInterval
+     *  @since 0.30
+     */
+    public Set<String> getHiddenCategories() throws IOException
+    {
+        Set<String> hidden = hiddenCategories;
+        if (hidden != null && System.currentTimeMillis() - hiddenCategoriesLoaded <= hiddenCategoriesRefresh)
+            return hidden;
+        synchronized (hiddenCategoriesLock)
+        {
+            // another thread may have loaded them meanwhile
+            if (hiddenCategories != null && System.currentTimeMillis() - hiddenCategoriesLoaded <= hiddenCategoriesRefresh)
+                return hiddenCategories;
+            String url = query + "list=categorymembers&cmprop=title&cmlimit=max&cmtype=subcat&cmnamespace="
+                + CATEGORY_NAMESPACE + "&cmtitle=" + URLEncoder.encode("Category:Hidden categories", "UTF-8");
+            HashSet<String> members = new HashSet<String>(50000);
+            String next = "";
+            do
+            {
+                // xml form: <cm ns="14" title="Category:CC-BY-SA-3.0" />
+                XMLStreamReader xml = fetchXML(url + next, "getHiddenCategories");
+                next = "";
+                try
+                {
+                    while (nextElement(xml))
+                    {
+                        if (xml.getLocalName().equals("cm"))
+                            members.add(xml.getAttributeValue(null, "title"));
+                        // stream through the category, one batch after another
+                        else if (xml.getAttributeValue(null, "cmcontinue") != null)
+                            next = "&cmcontinue=" + URLEncoder.encode(xml.getAttributeValue(null, "cmcontinue"), "UTF-8");
+                    }
+                }
+                catch (XMLStreamException ex)
+                {
+                    throw new IOException("Could not parse the hidden categories", ex);
+                }
+                finally
+                {
+                    closeXML(xml);
+                }
+            }
+            while (!next.isEmpty());
+            hiddenCategoriesLoaded = System.currentTimeMillis();
+            hiddenCategories = Collections.unmodifiableSet(members);
+            log(Level.INFO, "getHiddenCategories", "Successfully retrieved hidden categories (" + members.size() + " items)");
+            return hiddenCategories;
+        }
+    }
+
+    /**
+     *  Sets how long the set of hidden categories is used before it is loaded
+     *  again. Default: one day.
+     *  @param refresh the refresh interval in milliseconds
+     *  @since 0.30
+     */
+    public void setHiddenCategoriesRefreshInterval(long refresh)
+    {
+        hiddenCategoriesRefresh = refresh;
+    }
+
+    /**
+     *  Enables or disables the cache of the categories of categories used by
+     *  getCategories(). Popular categories (e.g. license categories) are
+     *  asked for again and again when walking up the category tree; the
+     *  cache keeps their parents for a while. Any former content of the cache
+     *  is dropped. Disabled by default.
+     *
+     *  @param size the maximum number of categories in the cache, the least
+     *  recently used ones are dropped first (0 = disable the cache)
+     *  @param ttl how long (in milliseconds) an entry stays valid
+     *  @see #getCategoryCacheStatistics
+     *  @since 0.30
+     */
+    public void setCategoryCache(int size, long ttl)
+    {
+        categoryCache = size > 0 ? new CategoryCache(size, ttl) : null;
+        log(Level.CONFIG, "setCategoryCache", "Category cache set to " + size + " entries, " + ttl + " milliseconds");
+    }
+
+    /**
+     *  Drops all entries of the category cache, e.g. after the categories of
+     *  categories were changed.
+     *  @since 0.30
+     */
+    public void clearCategoryCache()
+    {
+        CategoryCache cache = categoryCache;
+        if (cache != null)
+            cache.clear();
+    }
+
+    /**
+     *  Gets statistics of the category cache. The map has the keys "size"
+     *  (entries in the cache), "hits", "misses", "expired" (misses because
+     *  the entry was too old) and "evictions" (entries dropped to stay within
+     *  the maximum size), all mapped to Longs.
+     *  @return (see above), null if the cache is disabled
+     *  @since 0.30
+     */
+    public HashMap<String, Long> getCategoryCacheStatistics()
+    {
+        CategoryCache cache = categoryCache;
+        return cache == null ? null : cache.getStatistics();
+    }
+
+    /**
+     *  A size bounded cache of the categories of categories, dropping the
+     *  least recently used entries first. Entries expire after a fixed time.
+     *  Thread safe.
+     */
+    private static class CategoryCache
+    {
+        private final int size;
+        private final long ttl;
+        private final LinkedHashMap<String, Parents> entries;
+        private long hits = 0, misses = 0, expired = 0, evictions = 0;
+
+        private static class Parents
+        {
+            private final long created = System.currentTimeMillis();
+            // category => hidden
+            private final Map<String, Boolean> categories;
+            // category => sortkey prefix
+            private final Map<String, String> sortkeys;
+
+            private Parents(Map<String, Boolean> categories, Map<String, String> sortkeys)
+            {
+                this.categories = categories;
+                this.sortkeys = sortkeys;
+            }
+        }
+
+        private CategoryCache(int size, long ttl)
+        {
+            this.size = size;
+            this.ttl = ttl;
+            this.entries = new LinkedHashMap<String, Parents>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Parents> eldest)
+                {
+                    if (size() <= CategoryCache.this.size)
+                        return false;
+                    evictions++;
+                    return true;
+                }
+            };
+        }
+
+        private synchronized Parents get(String title)
+        {
+            Parents entry = entries.get(title);
+            if (entry != null && System.currentTimeMillis() - entry.created > ttl)
+            {
+                entries.remove(title);
+                entry = null;
+                expired++;
+            }
+            if (entry == null)
+                misses++;
+            else
+                hits++;
+            return entry;
+        }
+
+        private synchronized void put(String title, Parents entry)
+        {
+            entries.put(title, entry);
+        }
+
+        private synchronized void clear()
+        {
+            entries.clear();
+        }
+
+        private synchronized HashMap<String, Long> getStatistics()
+        {
+            HashMap<String, Long> statistics = new HashMap<String, Long>(8);
+            statistics.put("size", (long)entries.size());
+            statistics.put("hits", hits);
+            statistics.put("misses", misses);
+            statistics.put("expired", expired);
+            statistics.put("evictions", evictions);
+            return statistics;
+        }
+    }
 
     /**
      *  Gets the list of templates used on a particular page that are in a
@@ -2373,94 +3193,96 @@ public class Wiki implements Serializable
      *  @throws CredentialException if page is protected and we can't move it
      *  @since 0.16
      */
-    public synchronized void move(String title, String newTitle, String reason, boolean noredirect, boolean movetalk,
+    public void move(String title, String newTitle, String reason, boolean noredirect, boolean movetalk,
         boolean movesubpages) throws IOException, LoginException
     {
-        long start = System.currentTimeMillis();
-
-        // check for log in
-        if (user == null || !user.isAllowedTo("move"))
-        {
-            CredentialNotFoundException ex = new CredentialNotFoundException("Permission denied: cannot move pages.");
-            log(Level.SEVERE, "move", "Cannot move - permission denied: " + ex);
-            throw ex;
-        }
-        statusCheck();
-
-        // check namespace
-        int ns = namespace(title);
-        if (ns == FILE_NAMESPACE || ns == CATEGORY_NAMESPACE)
-            throw new UnsupportedOperationException("Tried to move a category/image.");
-        // TODO: image renaming? TEST ME (MediaWiki, that is).
-
-        // protection and token
-        HashMap info = getPageInfo(title);
-        // determine whether the page exists
-        if (!(Boolean)info.get("exists"))
-            throw new IllegalArgumentException("Tried to move a non-existant page!");
-        if (!checkRights(info, "move"))
+        boolean again = false;
+        scheduler.acquire(true);
+        synchronized (this)
         {
-            CredentialException ex = new CredentialException("Permission denied: page is protected.");
-            log(Level.WARNING, "move", "Cannot move - permission denied. " + ex);
-            throw ex;
-        }
-        String wpMoveToken = (String)info.get("token");
-
-        // post data
-        StringBuilder buffer = new StringBuilder(10000);
-        buffer.append("from=");
-        buffer.append(URLEncoder.encode(title, "UTF-8"));
-        buffer.append("&to=");
-        buffer.append(URLEncoder.encode(newTitle, "UTF-8"));
-        buffer.append("&reason=");
-        buffer.append(URLEncoder.encode(reason, "UTF-8"));
-        buffer.append("&token=");
-        buffer.append(URLEncoder.encode(wpMoveToken, "UTF-8"));
-        if (movetalk)
-            buffer.append("&movetalk=1");
-        if (noredirect && user.isAllowedTo("suppressredirect"))
-            buffer.append("&noredirect=1");
-        if (movesubpages && user.isAllowedTo("move-subpages"))
-            buffer.append("&movesubpages=1");
-        String response = post(apiUrl + "action=move", buffer.toString(), "move");
+            // check for log in
+            if (user == null || !user.isAllowedTo("move"))
+            {
+                CredentialNotFoundException ex = new CredentialNotFoundException("Permission denied: cannot move pages.");
+                log(Level.SEVERE, "move", "Cannot move - permission denied: " + ex);
+                throw ex;
+            }
+            statusCheck();
+
+            // check namespace
+            int ns = namespace(title);
+            if (ns == FILE_NAMESPACE || ns == CATEGORY_NAMESPACE)
+                throw new UnsupportedOperationException("Tried to move a category/image.");
+            // TODO: image renaming? TEST ME (MediaWiki, that is).
+
+            // protection and token
+            HashMap info = getPageInfo(title);
+            // determine whether the page exists
+            if (!(Boolean)info.get("exists"))
+                throw new IllegalArgumentException("Tried to move a non-existant page!");
+            if (!checkRights(info, "move"))
+            {
+                CredentialException ex = new CredentialException("Permission denied: page is protected.");
+                log(Level.WARNING, "move", "Cannot move - permission denied. " + ex);
+                throw ex;
+            }
+            String wpMoveToken = (String)info.get("token");
+
+            // post data
+            StringBuilder buffer = new StringBuilder(10000);
+            buffer.append("from=");
+            buffer.append(URLEncoder.encode(title, "UTF-8"));
+            buffer.append("&to=");
+            buffer.append(URLEncoder.encode(newTitle, "UTF-8"));
+            buffer.append("&reason=");
+            buffer.append(URLEncoder.encode(reason, "UTF-8"));
+            buffer.append("&token=");
+            buffer.append(URLEncoder.encode(wpMoveToken, "UTF-8"));
+            if (movetalk)
+                buffer.append("&movetalk=1");
+            if (noredirect && user.isAllowedTo("suppressredirect"))
+                buffer.append("&noredirect=1");
+            if (movesubpages && user.isAllowedTo("move-subpages"))
+                buffer.append("&movesubpages=1");
+            String response = post(apiUrl + "action=move", buffer.toString(), "move");
 
-        // done
-        try
-        {
-            // success
-            if (!response.contains("move from"))
-                checkErrors(response, "move");
+            // done
+            try
+            {
+                // success
+                if (!response.contains("move from"))
+                    checkErrors(response, "move");
+            }
+            catch (IOException e)
+            {
+                // retry once, see below
+                if (retry.get())
+                {
+                    log(Level.WARNING, "move", "Exception: " + e.getMessage() + " Retrying...");
+                    again = true;
+                }
+                else
+                {
+                    log(Level.SEVERE, "move", "EXCEPTION: " + e);
+                    throw e;
+                }
+            }
+            if (!again)
+                log(Level.INFO, "move", "Successfully moved " + title + " to " + newTitle);
         }
-        catch (IOException e)
+        // the retry waits for a write slot of its own, without holding the lock
+        if (again)
         {
-            // retry once
-            if (retry)
+            retry.set(false);
+            try
             {
-                retry = false;
-                log(Level.WARNING, "move", "Exception: " + e.getMessage() + " Retrying...");
                 move(title, newTitle, reason, noredirect, movetalk, movesubpages);
             }
-            else
+            finally
             {
-                log(Level.SEVERE, "move", "EXCEPTION: " + e);
-                throw e;
+                retry.set(true);
             }
         }
-        if (retry)
-            log(Level.INFO, "move", "Successfully moved " + title + " to " + newTitle);
-        retry = true;
-
-        // throttle
-        try
-        {
-            long time = throttle - System.currentTimeMillis() + start;
-            if (time > 0)
-                Thread.sleep(time);
-        }
-        catch (InterruptedException e)
-        {
-            // nobody cares
-        }
     }
    
     /**
@@ -2540,9 +3362,9 @@ public class Wiki implements Serializable
         catch (IOException e)
         {
             // retry once
-            if (retry)
+            if (retry.get())
             {
-                retry = false;
+                retry.set(false);
                 log(Level.WARNING, "protect", "Exception: " + e.getMessage() + " Retrying...");
                 protect(page, protectionstate, reason);
             }
@@ -2552,9 +3374,9 @@ public class Wiki implements Serializable
                 throw e;
             }
         }
-        if (retry)
+        if (retry.get())
             log(Level.INFO, "edit", "Successfully protected " + page);
-        retry = true;
+        retry.set(true);
 
         // throttle
         try
@@ -2723,7 +3545,7 @@ public class Wiki implements Serializable
             throw new CredentialNotFoundException("Permission denied: cannot rollback.");
         statusCheck();
         // check if cookies have expired
-        if (!cookies.containsValue(user.getUsername()))
+        if (!getCookies().containsValue(user.getUsername()))
         {
             log(Level.SEVERE, "rollback", "Cookies have expired.");
             logout();
@@ -2774,9 +3596,9 @@ public class Wiki implements Serializable
         catch (IOException e)
         {
             // retry once
-            if (retry)
+            if (retry.get())
             {
-                retry = false;
+                retry.set(false);
                 log(Level.WARNING, "rollback", "Exception: " + e.getMessage() + " Retrying...");
                 rollback(revision, bot, reason);
             }
@@ -2786,9 +3608,9 @@ public class Wiki implements Serializable
                 throw e;
             }
         }
-        if (retry)
+        if (retry.get())
             log(Level.INFO, "rollback", "Successfully reverted edits by " + user + " on " + revision.getPage());
-        retry = true;
+        retry.set(true);
     }
 
     /**
@@ -2827,90 +3649,93 @@ public class Wiki implements Serializable
      *  page.
      *  @since 0.20
      */
-    public synchronized void undo(Revision rev, Revision to, String reason, boolean minor,
+    public void undo(Revision rev, Revision to, String reason, boolean minor,
         boolean bot) throws IOException, LoginException
     {
+        boolean again = false;
         // throttle
-        long start = System.currentTimeMillis();
-        statusCheck();
-
-        // check here to see whether the titles correspond
-        if (to != null && !rev.getPage().equals(to.getPage()))
-            throw new IllegalArgumentException("Cannot undo - the revisions supplied are not on the same page!");
-
-        // protection and token
-        HashMap info = getPageInfo(rev.getPage());
-        if (!checkRights(info, "edit"))
+        scheduler.acquire(true);
+        synchronized (this)
         {
-            CredentialException ex = new CredentialException("Permission denied: page is protected.");
-            log(Level.WARNING, "undo", "Cannot edit - permission denied." + ex);
-            throw ex;
-        }
-        String wpEditToken = (String)info.get("token");
+            statusCheck();
 
-        // send data
-        StringBuilder buffer = new StringBuilder(10000);
-        buffer.append("title=");
-        buffer.append(rev.getPage());
-        if (!reason.isEmpty())
-        {
-            buffer.append("&summary=");
-            buffer.append(reason);
-        }
-        buffer.append("&undo=");
-        buffer.append(rev.getRevid());
-        if (to != null)
-        {
-            buffer.append("&undoafter=");
-            buffer.append(to.getRevid());
-        }
-        if (minor)
-            buffer.append("&minor=1");
-        if (bot)
-            buffer.append("&bot=1");
-        buffer.append("&token=");
-        buffer.append(URLEncoder.encode(wpEditToken, "UTF-8"));
-        String response = post(apiUrl + "action=edit", buffer.toString(), "undo");
+            // check here to see whether the titles correspond
+            if (to != null && !rev.getPage().equals(to.getPage()))
+                throw new IllegalArgumentException("Cannot undo - the revisions supplied are not on the same page!");
 
-        // done
-        try
-        {
-            checkErrors(response, "undo");
-        }
-        catch (IOException e)
-        {
-            // retry once
-            if (retry)
+            // protection and token
+            HashMap info = getPageInfo(rev.getPage());
+            if (!checkRights(info, "edit"))
             {
-                retry = false;
-                log(Level.WARNING, "undo", "Exception: " + e.getMessage() + " Retrying...");
-                undo(rev, to, reason, minor, bot);
+                CredentialException ex = new CredentialException("Permission denied: page is protected.");
+                log(Level.WARNING, "undo", "Cannot edit - permission denied." + ex);
+                throw ex;
             }
-            else
+            String wpEditToken = (String)info.get("token");
+
+            // send data
+            StringBuilder buffer = new StringBuilder(10000);
+            buffer.append("title=");
+            buffer.append(rev.getPage());
+            if (!reason.isEmpty())
             {
-                log(Level.SEVERE, "undo", "EXCEPTION: " + e);
-                throw e;
+                buffer.append("&summary=");
+                buffer.append(reason);
             }
-        }
-        if (retry)
-        {
-            String log = "Successfully undid revision(s) " + rev.getRevid();
+            buffer.append("&undo=");
+            buffer.append(rev.getRevid());
             if (to != null)
-                log += (" - " + to.getRevid());
-            log(Level.INFO, "undo", log);
-        }
-        retry = true;
+            {
+                buffer.append("&undoafter=");
+                buffer.append(to.getRevid());
+            }
+            if (minor)
+                buffer.append("&minor=1");
+            if (bot)
+                buffer.append("&bot=1");
+            buffer.append("&token=");
+            buffer.append(URLEncoder.encode(wpEditToken, "UTF-8"));
+            String response = post(apiUrl + "action=edit", buffer.toString(), "undo");
 
-        // throttle
-        try
-        {
-            long time = throttle - System.currentTimeMillis() + start;
-            if (time > 0)
-                Thread.sleep(time);
+            // done
+            try
+            {
+                checkErrors(response, "undo");
+            }
+            catch (IOException e)
+            {
+                // retry once, see below
+                if (retry.get())
+                {
+                    log(Level.WARNING, "undo", "Exception: " + e.getMessage() + " Retrying...");
+                    again = true;
+                }
+                else
+                {
+                    log(Level.SEVERE, "undo", "EXCEPTION: " + e);
+                    throw e;
+                }
+            }
+            if (!again)
+            {
+                String log = "Successfully undid revision(s) " + rev.getRevid();
+                if (to != null)
+                    log += (" - " + to.getRevid());
+                log(Level.INFO, "undo", log);
+            }
         }
-        catch (InterruptedException e)
+        // the retry waits for a write slot of its own, without holding the lock
+        if (again)
         {
-            // nobody cares
+            retry.set(false);
+            try
+            {
+                undo(rev, to, reason, minor, bot);
+            }
+            finally
+            {
+                retry.set(true);
+            }
         }
     }
 
@@ -3035,17 +3860,9 @@ public class Wiki implements Serializable
 
         // then we use ImageIO to read from it
         logurl(url2, "getImage");
-        URLConnection connection = new URL(url2).openConnection();
-        setCookies(connection);
-        connection.connect();
-        // there should be a better way to do this
-        BufferedInputStream in = new BufferedInputStream(connection.getInputStream());
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        int c;
-        while ((c = in.read()) != -1)
-            out.write(c);
+        byte[] image = readBytes(openBody(send(newRequest(url2).build())));
         log(Level.INFO, "getImage", "Successfully retrieved image \"" + title + "\"");
-        return out.toByteArray();
+        return image;
     }
 
     /**
@@ -3084,16 +3901,9 @@ public class Wiki implements Serializable
         metadata.put("mime", parseAttribute(line, "mime", 0));
 
         // exif
-        while (line.contains("metadata name=\""))
-        {
-            // TODO: remove this
-            int a = line.indexOf("name=\"") + 6;
-            int b = line.indexOf('\"', a);
-            String name = parseAttribute(line, "name", 0);
-            String value = parseAttribute(line, "value", 0);
-            metadata.put(name, value);
-            line = line.substring(b);
-        }
+        // xml form: <metadata name="Make" value="Canon" />
+        for (int a = line.indexOf("metadata name=\""); a >= 0; a = line.indexOf("metadata name=\"", a + 1))
+            metadata.put(parseAttribute(line, "name", a), parseAttribute(line, "value", a));
         return metadata;
     }
 
@@ -3198,22 +4008,14 @@ public class Wiki implements Serializable
                 // this is it
                 url = parseAttribute(line, "url", a);
                 logurl(url, "getOldImage");
-                URLConnection connection = new URL(url).openConnection();
-                setCookies(connection);
-                connection.connect();
-                // there should be a better way to do this
-                BufferedInputStream in = new BufferedInputStream(connection.getInputStream());
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
-                int c;
-                while ((c = in.read()) != -1)
-                    out.write(c);
+                byte[] image = readBytes(openBody(send(newRequest(url).build())));
 
                 // scrape archive name for logging purposes
                 String archive = parseAttribute(line, "archivename", 0);
                 if (archive == null)
                     archive = title;
                 log(Level.INFO, "getOldImage", "Successfully retrieved old image \"" + archive + "\"");
-                return out.toByteArray();
+                return image;
             }
         }
         return null;
@@ -3304,139 +4106,130 @@ public class Wiki implements Serializable
      *  @throws AccountLockedException if user is blocked
      *  @since 0.21
      */
-    public synchronized void upload(File file, String filename, String contents, String reason) throws IOException, LoginException
+    public void upload(File file, String filename, String contents, String reason) throws IOException, LoginException
     {
         // TODO: upload via URL
 
         // the usual stuff
         // throttle
-        long start = System.currentTimeMillis();
-
-        // check for log in
-        if (user == null || !user.isAllowedTo("upload"))
-        {
-            CredentialNotFoundException ex = new CredentialNotFoundException("Permission denied: cannot upload files.");
-            log(Level.SEVERE, "upload", "Cannot upload - permission denied." + ex);
-            throw ex;
-        }
-        statusCheck();
-        filename = filename.replaceFirst("^(File|Image|" + namespaceIdentifier(FILE_NAMESPACE) + "):", "");
-
-        // protection and token
-        HashMap info = getPageInfo("File:" + filename);
-        if (!checkRights(info, "upload"))
+        scheduler.acquire(true);
+        synchronized (this)
         {
-            CredentialException ex = new CredentialException("Permission denied: page is protected.");
-            log(Level.WARNING, "upload", "Cannot upload - permission denied." + ex);
-            throw ex;
-        }
-        String wpEditToken = (String)info.get("token");
-
-        // chunked upload setup
-        long filesize = file.length();
-        long chunks = (filesize >> LOG2_CHUNK_SIZE) + 1; 
-        FileInputStream fi = new FileInputStream(file);
-        String filekey = "";
-        
-        // upload the image
-        for (int i = 0; i < chunks; i++)
-        {
-            HashMap<String, Object> params = new HashMap<String, Object>(50);
-            params.put("filename", filename);
-            params.put("token", wpEditToken);
-            params.put("ignorewarnings", "true");
-            if (chunks == 1)
+            // check for log in
+            if (user == null || !user.isAllowedTo("upload"))
             {
-                // Chunks disabled due to a small filesize.
-                // This is just a normal upload.
-                params.put("text", contents);
-                if (!reason.isEmpty())
-                    params.put("comment", reason);
-                byte[] by = new byte[fi.available()];
-                fi.read(by);
-                // Why this is necessary?
-                params.put("file\"; filename=\"" + file.getName(), by);
+                CredentialNotFoundException ex = new CredentialNotFoundException("Permission denied: cannot upload files.");
+                log(Level.SEVERE, "upload", "Cannot upload - permission denied." + ex);
+                throw ex;
             }
-            else
+            statusCheck();
+            filename = filename.replaceFirst("^(File|Image|" + namespaceIdentifier(FILE_NAMESPACE) + "):", "");
+
+            // protection and token
+            HashMap info = getPageInfo("File:" + filename);
+            if (!checkRights(info, "upload"))
             {
-                long offset = i << LOG2_CHUNK_SIZE;
-                params.put("stash", "1");
-                params.put("offset", "" + offset);
-                params.put("filesize", "" + filesize);
-                if (i != 0)
-                    params.put("filekey", filekey);
-                
-                // write the actual file
-                long buffersize = Math.min(1 << LOG2_CHUNK_SIZE, filesize - offset);
-                byte[] by = new byte[(int)buffersize]; // 32 bit problem. Why must array indices be ints?
-                fi.read(by); 
-                params.put("chunk\"; filename=\"" + file.getName(), by);
-                
-                // Each chunk presumably requires a new edit token
-                wpEditToken = (String)getPageInfo("File:" + filename).get("token");
+                CredentialException ex = new CredentialException("Permission denied: page is protected.");
+                log(Level.WARNING, "upload", "Cannot upload - permission denied." + ex);
+                throw ex;
             }
-                
-            // done
-            String response = multipartPost(apiUrl + "action=upload", params, "upload");
-            try
+            String wpEditToken = (String)info.get("token");
+
+            // chunked upload setup
+            long filesize = file.length();
+            long chunks = (filesize >> LOG2_CHUNK_SIZE) + 1; 
+            FileInputStream fi = new FileInputStream(file);
+            String filekey = "";
+
+            // upload the image
+            for (int i = 0; i < chunks; i++)
             {
-                // look for filekey
-                if (chunks > 1)
+                HashMap<String, Object> params = new HashMap<String, Object>(50);
+                params.put("filename", filename);
+                params.put("token", wpEditToken);
+                params.put("ignorewarnings", "true");
+                if (chunks == 1)
+                {
+                    // Chunks disabled due to a small filesize.
+                    // This is just a normal upload.
+                    params.put("text", contents);
+                    if (!reason.isEmpty())
+                        params.put("comment", reason);
+                    byte[] by = new byte[fi.available()];
+                    fi.read(by);
+                    // Why this is necessary?
+                    params.put("file\"; filename=\"" + file.getName(), by);
+                }
+                else
+                {
+                    long offset = i << LOG2_CHUNK_SIZE;
+                    params.put("stash", "1");
+                    params.put("offset", "" + offset);
+                    params.put("filesize", "" + filesize);
+                    if (i != 0)
+                        params.put("filekey", filekey);
+
+                    // write the actual file
+                    long buffersize = Math.min(1 << LOG2_CHUNK_SIZE, filesize - offset);
+                    byte[] by = new byte[(int)buffersize]; // 32 bit problem. Why must array indices be ints?
+                    fi.read(by); 
+                    params.put("chunk\"; filename=\"" + file.getName(), by);
+
+                    // Each chunk presumably requires a new edit token
+                    wpEditToken = (String)getPageInfo("File:" + filename).get("token");
+                }
+
+                // done
+                String response = multipartPost(apiUrl + "action=upload", params, "upload");
+                try
                 {
-                    if (response.contains("filekey=\""))
+                    // look for filekey
+                    if (chunks > 1)
                     {
-                        filekey = parseAttribute(response, "filekey", 0);
-                        continue;
+                        if (response.contains("filekey=\""))
+                        {
+                            filekey = parseAttribute(response, "filekey", 0);
+                            continue;
+                        }
+                        else
+                            throw new IOException("No filekey present! Server response was " + response);
                     }
-                    else
-                        throw new IOException("No filekey present! Server response was " + response);
+                    // TODO: check for more specific errors here
+                    if (response.contains("error code=\"fileexists-shared-forbidden\""))
+                    {
+                        CredentialException ex = new CredentialException("Cannot overwrite file hosted on central repository.");
+                        log(Level.WARNING, "upload", "Cannot upload - permission denied." + ex);
+                        throw ex;
+                    }
+                    checkErrors(response, "upload");
                 }
-                // TODO: check for more specific errors here
-                if (response.contains("error code=\"fileexists-shared-forbidden\""))
+                catch (IOException e)
                 {
-                    CredentialException ex = new CredentialException("Cannot overwrite file hosted on central repository.");
-                    log(Level.WARNING, "upload", "Cannot upload - permission denied." + ex);
-                    throw ex;
+                    fi.close();
+                    // don't bother retrying - uploading is a pain
+                    log(Level.SEVERE, "upload", "EXCEPTION: " + e);
+                    throw e;
                 }
-                checkErrors(response, "upload");
             }
-            catch (IOException e)
+            fi.close();
+
+            // unstash upload if chunked
+            if (chunks > 1)
             {
-                fi.close();
-                // don't bother retrying - uploading is a pain
-                log(Level.SEVERE, "upload", "EXCEPTION: " + e);
-                throw e;
+                HashMap<String, Object> params = new HashMap<String, Object>(50);
+                params.put("filename", filename);
+                params.put("token", wpEditToken);
+                params.put("text", contents);
+                if (!reason.isEmpty())
+                    params.put("comment", reason);
+                params.put("ignorewarnings", "true");
+                params.put("filekey", filekey);
+                String response = multipartPost(apiUrl + "action=upload", params, "upload");
+                checkErrors(response, "upload");
             }
+
+            log(Level.INFO, "upload", "Successfully uploaded to File:" + filename + ".");
         }
-        fi.close();
-        
-        // unstash upload if chunked
-        if (chunks > 1)
-        {
-            HashMap<String, Object> params = new HashMap<String, Object>(50);
-            params.put("filename", filename);
-            params.put("token", wpEditToken);
-            params.put("text", contents);
-            if (!reason.isEmpty())
-                params.put("comment", reason);
-            params.put("ignorewarnings", "true");
-            params.put("filekey", filekey);
-            String response = multipartPost(apiUrl + "action=upload", params, "upload");
-            checkErrors(response, "upload");
-        }
-                  
-        // throttle
-        try
-        {
-            long time = throttle - System.currentTimeMillis() + start;
-            if (time > 0)
-                Thread.sleep(time);
-        }
-        catch (InterruptedException e)
-        {
-            // nobody cares
-        }
-        log(Level.INFO, "upload", "Successfully uploaded to File:" + filename + ".");
     }
 
     // USER METHODS
@@ -3715,61 +4508,52 @@ public class Wiki implements Serializable
      *  not have a verified email address
      *  @since 0.24
      */
-    public synchronized void emailUser(User user, String message, String subject, boolean emailme) throws IOException, LoginException
+    public void emailUser(User user, String message, String subject, boolean emailme) throws IOException, LoginException
     {
-        long start = System.currentTimeMillis();
+        scheduler.acquire(true);
+        synchronized (this)
+        {
+            // check if blocked, logged in
+            if (this.user == null || !this.user.isAllowedTo("sendemail"))
+                throw new CredentialNotFoundException("Permission denied: cannot email.");
 
-        // check if blocked, logged in
-        if (this.user == null || !this.user.isAllowedTo("sendemail"))
-            throw new CredentialNotFoundException("Permission denied: cannot email.");
+            // is this user emailable?
+            if (!(Boolean)user.getUserInfo().get("emailable"))
+            {
+                // should throw an exception here
+                log(Level.WARNING, "emailUser", "User " + user.getUsername() + " is not emailable");
+                return;
+            }
+            String token = (String)getPageInfo("User:" + user.getUsername()).get("token");
+            if (token.equals("\\+"))
+            {
+                log(Level.SEVERE, "emailUser", "Cookies have expired.");
+                logout();
+                throw new CredentialExpiredException("Cookies have expired.");
+            }
 
-        // is this user emailable?
-        if (!(Boolean)user.getUserInfo().get("emailable"))
-        {
-            // should throw an exception here
-            log(Level.WARNING, "emailUser", "User " + user.getUsername() + " is not emailable");
-            return;
-        }
-        String token = (String)getPageInfo("User:" + user.getUsername()).get("token");
-        if (token.equals("\\+"))
-        {
-            log(Level.SEVERE, "emailUser", "Cookies have expired.");
-            logout();
-            throw new CredentialExpiredException("Cookies have expired.");
-        }
+            // post email
+            StringBuilder buffer = new StringBuilder(20000);
+            buffer.append("token=");
+            buffer.append(URLEncoder.encode(token, "UTF-8"));
+            buffer.append("&target=");
+            buffer.append(URLEncoder.encode(user.getUsername(), "UTF-8"));
+            if (emailme)
+                buffer.append("&ccme=true");
+            buffer.append("&text=");
+            buffer.append(URLEncoder.encode(message, "UTF-8"));
+            buffer.append("&subject=");
+            buffer.append(URLEncoder.encode(subject, "UTF-8"));
+            String response = post(apiUrl + "action=emailuser", buffer.toString(), "emailUser");
 
-        // post email
-        StringBuilder buffer = new StringBuilder(20000);
-        buffer.append("token=");
-        buffer.append(URLEncoder.encode(token, "UTF-8"));
-        buffer.append("&target=");
-        buffer.append(URLEncoder.encode(user.getUsername(), "UTF-8"));
-        if (emailme)
-            buffer.append("&ccme=true");
-        buffer.append("&text=");
-        buffer.append(URLEncoder.encode(message, "UTF-8"));
-        buffer.append("&subject=");
-        buffer.append(URLEncoder.encode(subject, "UTF-8"));
-        String response = post(apiUrl + "action=emailuser", buffer.toString(), "emailUser");
-
-        // check for errors
-        checkErrors(response, "email");
-        if (response.contains("error code=\"cantsend\""))
-            throw new UnsupportedOperationException("Email is disabled for this wiki or you do not have a confirmed email address.");
+            // check for errors
+            checkErrors(response, "email");
+            if (response.contains("error code=\"cantsend\""))
+                throw new UnsupportedOperationException("Email is disabled for this wiki or you do not have a confirmed email address.");
 
-        // throttle
-        try
-        {
-            long time = throttle - System.currentTimeMillis() + start;
-            if (time > 0)
-                Thread.sleep(time);
-        }
-        catch (InterruptedException e)
-        {
-            // nobody cares
-        }
 
-        log(Level.INFO, "emailUser", "Successfully emailed " + user.getUsername() + ".");
+            log(Level.INFO, "emailUser", "Successfully emailed " + user.getUsername() + ".");
+        }
     }
 
     // WATCHLIST METHODS
@@ -3875,13 +4659,14 @@ public class Wiki implements Serializable
             throw new CredentialNotFoundException("The watchlist is available for registered users only.");
 
         // cache
-        if (watchlist != null && cache)
-            return watchlist.toArray(new String[watchlist.size()]);
+        List<String> cached = watchlist;
+        if (cached != null && cache)
+            return cached.toArray(new String[0]);
 
         // set up some things
         String url = query + "list=watchlistraw&wrlimit=max";
         String wrcontinue = "";
-        watchlist = new ArrayList<String>(750);
+        ArrayList<String> temp = new ArrayList<String>(750);
         // fetch the watchlist
         do
         {
@@ -3897,14 +4682,16 @@ public class Wiki implements Serializable
                 String title = parseAttribute(line, "title", a);
                 // is this supposed to not retrieve talk pages?
                 if (namespace(title) % 2 == 0)
-                    watchlist.add(title);
+                    temp.add(title);
             }
         }
         while (wrcontinue != null);
+        // publish the complete list, watch() and unwatch() may change it concurrently
+        watchlist = Collections.synchronizedList(temp);
         // log
-        int size = watchlist.size();
+        int size = temp.size();
         log(Level.INFO, "getRawWatchlist", "Successfully retrieved raw watchlist (" + size + " items)");
-        return watchlist.toArray(new String[size]);
+        return temp.toArray(new String[size]);
     }
 
     /**
@@ -4278,6 +5065,43 @@ public class Wiki implements Serializable
         return members.toArray(new String[size]);
     }
 
+    /**
+     *  Gets the members of a category lazily, one response after another
+     *  (see {@link QueryIterator}). Members of subcategories are not included.
+     *
+     *  @param name the name of the category
+     *  @param ns a list of namespaces to filter by, empty = all namespaces.
+     *  @return the page titles of the members of the category
+     *  @throws IOException if a network error occurs
+     *  @since 0.30
+     */
+    public QueryIterator<String> iterateCategoryMembers(String name, int... ns) throws IOException
+    {
+        name = name.replaceFirst("^(Category|" + namespaceIdentifier(CATEGORY_NAMESPACE) + "):", "");
+        StringBuilder url = new StringBuilder(query);
+        url.append("list=categorymembers&cmprop=title&cmlimit=max&cmtitle=Category:");
+        url.append(URLEncoder.encode(normalize(name), "UTF-8"));
+        constructNamespaceString(url, "cm", ns);
+        // xml form: <cm pageid="24958584" ns="3" title="User talk:86.29.138.185" />
+        return new QueryIterator<String>(url.toString(), "cm", "cmcontinue", "getCategoryMembers", titleParser());
+    }
+
+    /**
+     *  Parses the title of list query items, e.g. <tt>&lt;cm ns="0"
+     *  title="A" /&gt;</tt>.
+     *  @return the parser
+     */
+    private ItemParser<String> titleParser()
+    {
+        return new ItemParser<String>()
+        {
+            public String parse(XMLStreamReader item)
+            {
+                return item.getAttributeValue(null, "title");
+            }
+        };
+    }
+
     /**
      * Return the next batch of files ...
      *  
@@ -4306,7 +5130,195 @@ public class Wiki implements Serializable
         log(Level.INFO, "Successfully retrieved next files (" + size + " items)", "listAllFiles");
         return new Object[] {continueKey , members.toArray(new String[size])};
 	}
+
+    /**
+     *  Lists all files (no redirects) lazily, one response after another
+     *  (see {@link QueryIterator}).
+     *
+     *  @param continueKey the file to start from, "" for the first one
+     *  @return the titles of the files
+     *  @throws IOException if a network error occurs
+     *  @see #listAllFiles
+     *  @since 0.30
+     */
+    public QueryIterator<String> iterateAllFiles(String continueKey) throws IOException
+    {
+        StringBuilder url = new StringBuilder(query);
+        url.append("list=allpages&apnamespace=6&apfilterredir=nonredirects&aplimit=max&apfrom=");
+        url.append(URLEncoder.encode(continueKey, "UTF-8"));
+        // xml form: <p pageid="22097388" ns="6" title="File:~2009-07-09 סימטאות יפה העתיקה.jpg" />
+        return new QueryIterator<String>(url.toString(), "p", "apcontinue", "listAllFiles", titleParser());
+    }
+
+    /**
+     *  Returns the next batch of files without blocking the calling thread.
+     *
+     *  @param continueKey the file to continue from
+     *  @param amount the amount of file names to return
+     *  @return the result of {@link #listAllFiles}, to come
+     *  @since 0.30
+     */
+    public CompletableFuture<Object[]> listAllFilesAsync(final String continueKey, final int amount)
+    {
+        return async(new Callable<Object[]>()
+        {
+            public Object[] call() throws IOException
+            {
+                return listAllFiles(continueKey, amount);
+            }
+        });
+    }
 	
+    /**
+     *  Returns the next batch of files together with everything needed to
+     *  clean them up, using a single generator query per batch (further
+     *  requests are only made if the categories or texts of the batch do not
+     *  fit into one response). Each page comes as:
+     *  <pre>
+     *  {
+     *      "title"      => "File:A.jpg"     , // the title of the page (String)
+     *      "exists"     => true             , // whether the page still exists (Boolean)
+     *      "lastrevid"  => 123456789L       , // the revid of the top revision (Long)
+     *      "timestamp"  => makeCalendar()   , // when the top revision was made (Calendar)
+     *      "protection" => NO_PROTECTION    , // the protection state as in {@link #getPageInfo(String[]) }
+     *      "text"       => "{{Information"  , // the raw wikicode of the top revision (String)
+     *      "categories" => {"Category:B" => false, ...}
+     *                                         // the categories of the page mapped to whether
+     *                                         // they are hidden (LinkedHashMap&lt;String, Boolean&gt;)
+     *  }
+     *  </pre>
+     *
+     *  @param continueKey the file to continue from
+     *  @param amount the amount of files to return, at most <tt>slowmax</tt>
+     *  @return an object containing the file to continue from and the pages
+     *  of the batch (HashMap[])
+     *  @throws IOException if a network error occurs
+     *  @see #listAllFiles
+     */
+    public Object[] listAllFilesWithContent(String continueKey, int amount) throws IOException
+    {
+        StringBuilder url = new StringBuilder(query);
+        url.append("generator=allpages&gapnamespace=6&gapfilterredir=nonredirects&gaplimit=");
+        url.append(Math.min(amount, slowmax));
+        url.append("&gapcontinue=");
+        url.append(URLEncoder.encode(continueKey, "UTF-8"));
+        url.append("&prop=info%7Crevisions%7Ccategories&inprop=protection&rvprop=content%7Cids%7Ctimestamp");
+        url.append("&clprop=sortkey%7Chidden&cllimit=max");
+
+        LinkedHashMap<String, HashMap<String, Object>> pages = new LinkedHashMap<String, HashMap<String, Object>>();
+        String propcontinue = "";
+        String nextKey = "";
+        do
+        {
+            // xml form: <page pageid="1" ns="6" title="File:A.jpg" lastrevid="2" ...>
+            // <protection /><revisions><rev revid="2" ...>text</rev></revisions>
+            // <categories><cl ns="14" title="Category:B" sortkeyprefix="" hidden="" /></categories></page>
+            // The texts make these responses large, so they are parsed while they come in.
+            XMLStreamReader xml = fetchXML(url.toString() + propcontinue, "listAllFilesWithContent");
+            propcontinue = "";
+            try
+            {
+                HashMap<String, Object> page = null;
+                while (nextElement(xml))
+                {
+                    String element = xml.getLocalName();
+                    if (element.equals("page"))
+                    {
+                        String title = xml.getAttributeValue(null, "title");
+                        page = pages.get(title);
+                        if (page == null)
+                        {
+                            page = new HashMap<String, Object>(10);
+                            page.put("title", title);
+                            page.put("exists", false);
+                            page.put("categories", new LinkedHashMap<String, Boolean>());
+                            pages.put(title, page);
+                        }
+                        if (xml.getAttributeValue(null, "missing") == null)
+                            page.put("protection", parseProtection(xml, title, true));
+                    }
+                    else if (element.equals("protection") && page != null)
+                        page.put("protection", parseProtection(xml, (String)page.get("title"), true));
+                    // revisions only show up once, categories may be split over several responses
+                    else if (element.equals("rev") && page != null && !(Boolean)page.get("exists"))
+                    {
+                        page.put("exists", true);
+                        page.put("lastrevid", Long.parseLong(xml.getAttributeValue(null, "revid")));
+                        page.put("timestamp", timestampToCalendar(xml.getAttributeValue(null, "timestamp"), true));
+                        page.put("text", xml.getElementText());
+                    }
+                    else if (element.equals("cl") && page != null)
+                        ((LinkedHashMap<String, Boolean>)page.get("categories")).put(xml.getAttributeValue(null, "title"),
+                            xml.getAttributeValue(null, "hidden") != null);
+                    // finish the props of this batch before moving the generator on
+                    else if (xml.getAttributeValue(null, "clcontinue") != null)
+                        propcontinue += "&clcontinue=" + URLEncoder.encode(xml.getAttributeValue(null, "clcontinue"), "UTF-8");
+                    else if (xml.getAttributeValue(null, "rvcontinue") != null)
+                        propcontinue += "&rvcontinue=" + URLEncoder.encode(xml.getAttributeValue(null, "rvcontinue"), "UTF-8");
+                    else if (xml.getAttributeValue(null, "gapcontinue") != null)
+                        nextKey = xml.getAttributeValue(null, "gapcontinue");
+                }
+            }
+            catch (XMLStreamException ex)
+            {
+                throw new IOException("Could not parse the files", ex);
+            }
+            finally
+            {
+                closeXML(xml);
+            }
+        }
+        while (!propcontinue.isEmpty());
+
+        HashMap[] ret = pages.values().toArray(new HashMap[pages.size()]);
+        log(Level.INFO, "listAllFilesWithContent", "Successfully retrieved next files (" + ret.length + " items)");
+        return new Object[] { nextKey, ret };
+    }
+
+    /**
+     *  Returns the next batch of files with their content without blocking
+     *  the calling thread.
+     *
+     *  @param continueKey the file to continue from
+     *  @param amount the amount of files to return, at most <tt>slowmax</tt>
+     *  @return the result of {@link #listAllFilesWithContent}, to come
+     *  @since 0.30
+     */
+    public CompletableFuture<Object[]> listAllFilesWithContentAsync(final String continueKey, final int amount)
+    {
+        return async(new Callable<Object[]>()
+        {
+            public Object[] call() throws IOException
+            {
+                return listAllFilesWithContent(continueKey, amount);
+            }
+        });
+    }
+
+    /**
+     *  Parses the <tt>prop=categories</tt> part of a query for a single page.
+     *  @param item the xml of a single page
+     *  @param categories the map to put the categories into, mapped to whether
+     *  they are hidden
+     *  @param sortkeys the map to put the sortkey prefixes into (may be null)
+     */
+    protected void parseCategories(String item, Map<String, Boolean> categories, Map<String, String> sortkeys)
+    {
+        // xml form: <cl ns="14" title="Category:1879 births" sortkey=(long string) sortkeyprefix="" />
+        // or      : <cl ns="14" title="Category:Images for cleanup" sortkey=(long string) sortkeyprefix="Borders" hidden="" />
+        for (int a = item.indexOf("<cl "); a >= 0; a = item.indexOf("<cl ", ++a))
+        {
+            String cl = item.substring(a, item.indexOf('>', a));
+            String category = decode(parseAttribute(cl, "title", 0));
+            categories.put(category, cl.contains(" hidden=\"\""));
+            if (sortkeys != null)
+            {
+                String prefix = parseAttribute(cl, "sortkeyprefix", 0);
+                sortkeys.put(category, prefix == null ? "" : decode(prefix));
+            }
+        }
+    }
+
 	/**
 	 * Gets the recent changes (any log action) for the last days for files (ns=6).
 	 * For commons we have 10000+ files per day. (May include deleted files)
@@ -4324,31 +5336,24 @@ public class Wiki implements Serializable
 		DateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmss");
 		String rcStart = (dateFormat.format(new Date(System.currentTimeMillis() - daysBegin*24*60*60*1000)));
 		String rcEnd = (dateFormat.format(new Date(System.currentTimeMillis() - daysEnd*24*60*60*1000)));
-		String continueKey = "";
+		StringBuilder url = new StringBuilder(query);
+		url.append("list=recentchanges");
+		url.append("&rcstart="+rcStart);
+		url.append("&rcend="+rcEnd);
+		//fun fact: uploaded files are not new files. Thus we do not use rctype=new but rctype=log !
+		url.append("&rcdir=newer&rcnamespace=6&rclimit="+amount+"&rctype=log");
+		// xml form: <rc type="new" ns="6" title="File:Bozena (Bo) Intrator.JPG" ... />
+		QueryIterator<String> uploads = new QueryIterator<String>(url.toString(), "rc", "rccontinue", "listRecentUploads", titleParser());
 		ArrayList<String> members = new ArrayList<String>();
-		do{
-			StringBuilder url = new StringBuilder(query);
-			url.append("list=recentchanges");
-			if(continueKey!=null&&continueKey.length()==30)
-				url.append("&rccontinue="+URLEncoder.encode(continueKey, "UTF-8"));
-			//else
-			{
-				url.append("&rcstart="+rcStart);
-				url.append("&rcend="+rcEnd);
-			}
-			//fun fact: uploaded files are not new files. Thus we do not use rctype=new but rctype=log !
-			url.append("&rcdir=newer&rcnamespace=6&rclimit="+amount+"&rctype=log");
-			String line = fetch(url.toString(), "listRecentUploads");
-
-
-			// xml form: <rc type="new" ns="6" title="File:Bozena (Bo) Intrator.JPG" ... />
-			for (int x = line.indexOf("<rc "); x > 0; x = line.indexOf("<rc ", ++x))
-				members.add(decode(parseAttribute(line, "title", x)));
-			if (line.contains("<query-continue>"))
-				continueKey = decode(parseAttribute(line, "rccontinue", 0));
-			else
-				continueKey = "";
-		}while(!continueKey.isEmpty());
+		try
+		{
+			while (uploads.hasNext())
+				members.add(uploads.next());
+		}
+		catch (UncheckedIOException ex)
+		{
+			throw ex.getCause();
+		}
 		int size = members.size();
 		log(Level.INFO, "Successfully retrieved files (" + size + " items)", "listRecentUploads");
 		return  members.toArray(new String[size]);
@@ -4739,16 +5744,14 @@ public class Wiki implements Serializable
                 lestart = null;
 
             // parse xml. We need to repeat the test because the XML may contain more than the required amount.
-            while (line.contains("<item") && entries.size() < amount)
+            for (int a = line.indexOf("<item"); a >= 0 && entries.size() < amount; a = line.indexOf("<item", a))
             {
-                // find entry
-                int a = line.indexOf("<item");
-                // end may be " />" or "</item>", followed by next item
+                // find entry. End may be " />" or "</item>", followed by next item
                 int b = line.indexOf("><item", a);
                 if (b < 0) // last entry
                     b = line.length();
                 LogEntry entry = parseLogEntry(line.substring(a, b));
-                line = line.substring(b);
+                a = b;
 
                 // namespace processing
                 if (namespace == ALL_NAMESPACES || namespace(entry.getTarget()) == namespace)
@@ -6309,68 +7312,201 @@ public class Wiki implements Serializable
         }
     }
 
-    // INTERNALS
-
-    // miscellany
+    /**
+     *  Parses a single item of a list query, see {@link QueryIterator}.
+     *  @since 0.30
+     */
+    protected interface ItemParser<T>
+    {
+        /**
+         *  @param item the parser of the response, at the start tag of the
+         *  item. It may be moved on, but not beyond the end tag of the item.
+         *  @return the parsed item
+         *  @throws IOException if a network error occurs
+         *  @throws XMLStreamException if the response is no well-formed XML
+         */
+        T parse(XMLStreamReader item) throws IOException, XMLStreamException;
+    }
 
     /**
-     *  A generic URL content fetcher. This is only useful for GET requests,
-     *  which is almost everything that doesn't modify the wiki. Might be
-     *  useful for subclasses.
-     *
-     *  Here we also check the database lag and wait if it exceeds
-     *  <tt>maxlag</tt>, see <a href="https://mediawiki.org/wiki/Manual:Maxlag_parameter">
-     *  here</a> for how this works.
-     *
-     *  @param url the url to fetch
-     *  @param caller the caller of this method
-     *  @return the content of the fetched URL
-     *  @throws IOException if a network error occurs
-     *  @since 0.18
+     *  A lazy view of the results of a list query. The first response is
+     *  fetched when the iterator is used for the first time; as soon as a
+     *  response came in, the next one is fetched in the background (see
+     *  {@link #setAsyncExecutor}). So only about two responses are held in
+     *  memory, whatever the size of the result, and stopping early (close the
+     *  iterator then) saves all further requests. Network errors surface as
+     *  <tt>UncheckedIOException</tt>.
+     *  @since 0.30
      */
-    protected String fetch(String url, String caller) throws IOException
+    public class QueryIterator<T> implements Iterator<T>, AutoCloseable
     {
-        // connect
-        logurl(url, caller);
-        URLConnection connection = new URL(url).openConnection();
-        connection.setConnectTimeout(CONNECTION_CONNECT_TIMEOUT_MSEC);
-        connection.setReadTimeout(CONNECTION_READ_TIMEOUT_MSEC);
-        setCookies(connection);
-        connection.connect();
-        grabCookies(connection);
+        private final String url, itemname, continueparam, caller;
+        private final ItemParser<T> parser;
+        // the items of the current response and the continuation for the next
+        private ArrayList<T> items = null;
+        private int position = 0;
+        private String next = "";
+        private CompletableFuture<Object[]> ahead = null;
+        private boolean closed = false;
 
-        // check lag
-        int lag = connection.getHeaderFieldInt("X-Database-Lag", -5);
-        if (lag > maxlag)
+        /**
+         *  Creates a view of a list query.
+         *  @param url the url of the query
+         *  @param item the name of the elements of the items (e.g. "cm" for
+         *  list=categorymembers)
+         *  @param continueparam the continuation parameter (e.g. "cmcontinue")
+         *  @param caller the caller, for logging
+         *  @param parser parses the items
+         */
+        protected QueryIterator(String url, String item, String continueparam, String caller, ItemParser<T> parser)
         {
-            try
-            {
-                synchronized(this)
+            this.url = url;
+            this.itemname = item;
+            this.continueparam = continueparam;
+            this.caller = caller;
+            this.parser = parser;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            while (!closed && (items == null || position == items.size()) && next != null)
+                nextResponse();
+            return !closed && items != null && position < items.size();
+        }
+
+        @Override
+        public T next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            T item = items.get(position);
+            items.set(position++, null); // let it go
+            return item;
+        }
+
+        /**
+         *  Stops the iteration, the result of a request in progress is
+         *  dropped.
+         */
+        @Override
+        public void close()
+        {
+            closed = true;
+            if (ahead != null)
+                ahead.cancel(false);
+        }
+
+        /**
+         *  @return the remaining items as a sequential stream, closing the
+         *  stream closes this iterator
+         */
+        public Stream<T> stream()
+        {
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false)
+                .onClose(new Runnable()
                 {
-                    int time = connection.getHeaderFieldInt("Retry-After", 10);
-                    log(Level.WARNING, caller, "Current database lag " + lag + " s exceeds " + maxlag + " s, waiting " + time + " s.");
-                    Thread.sleep(time * 1000);
-                }
+                    public void run()
+                    {
+                        close();
+                    }
+                });
+        }
+
+        /**
+         *  Moves on to the next response and starts fetching the one after it.
+         */
+        private void nextResponse()
+        {
+            Object[] response;
+            try
+            {
+                response = ahead == null ? fetchResponse(next) : ahead.join();
             }
-            catch (InterruptedException ex)
+            catch (IOException ex)
             {
-                // nobody cares
+                throw new UncheckedIOException(ex);
+            }
+            catch (CompletionException ex)
+            {
+                if (ex.getCause() instanceof IOException)
+                    throw new UncheckedIOException((IOException)ex.getCause());
+                throw ex;
+            }
+            items = (ArrayList<T>)response[0];
+            position = 0;
+            next = (String)response[1];
+            ahead = null;
+            if (next != null)
+            {
+                final String cont = next;
+                ahead = async(new Callable<Object[]>()
+                {
+                    public Object[] call() throws IOException
+                    {
+                        return fetchResponse(cont);
+                    }
+                });
             }
-            return fetch(url, caller); // retry the request
         }
 
-        // get the text
-        BufferedReader in = new BufferedReader(new InputStreamReader(
-            zipped ? new GZIPInputStream(connection.getInputStream()) : connection.getInputStream(), "UTF-8"));
-        String line;
-        StringBuilder text = new StringBuilder(100000);
-        while ((line = in.readLine()) != null)
+        /**
+         *  Fetches and parses one response.
+         *  @param cont the continuation parameter, "" for the first response
+         *  @return the items (ArrayList) and the continuation for the next
+         *  response (String, null if this was the last one)
+         */
+        private Object[] fetchResponse(String cont) throws IOException
         {
-            text.append(line);
-            text.append("\n");
+            // xml form: <cm ns="14" title="Category:A" /> or <item ...>...</item>
+            // and        <query-continue><categorymembers cmcontinue="..." /></query-continue>
+            XMLStreamReader xml = fetchXML(url + cont, caller);
+            ArrayList<T> results = new ArrayList<T>();
+            String nextcont = null;
+            try
+            {
+                while (nextElement(xml))
+                {
+                    if (xml.getLocalName().equals(itemname))
+                        results.add(parser.parse(xml));
+                    else if (xml.getAttributeValue(null, continueparam) != null)
+                        nextcont = "&" + continueparam + "=" + URLEncoder.encode(xml.getAttributeValue(null, continueparam), "UTF-8");
+                }
+            }
+            catch (XMLStreamException ex)
+            {
+                throw new IOException("Could not parse the response of " + caller, ex);
+            }
+            finally
+            {
+                closeXML(xml);
+            }
+            return new Object[] { results, nextcont };
         }
-        in.close();
-        String temp = text.toString();
+    }
+
+    // INTERNALS
+
+    // miscellany
+
+    /**
+     *  A generic URL content fetcher. This is only useful for GET requests,
+     *  which is almost everything that doesn't modify the wiki. Might be
+     *  useful for subclasses.
+     *
+     *  Here we also check the database lag and wait if it exceeds
+     *  <tt>maxlag</tt>, see <a href="https://mediawiki.org/wiki/Manual:Maxlag_parameter">
+     *  here</a> for how this works.
+     *
+     *  @param url the url to fetch
+     *  @param caller the caller of this method
+     *  @return the content of the fetched URL
+     *  @throws IOException if a network error occurs
+     *  @since 0.18
+     */
+    protected String fetch(String url, String caller) throws IOException
+    {
+        String temp = readText(fetchStream(url, caller));
         if (temp.contains("<error code="))
             // Something *really* bad happened. Most of these are self-explanatory
             // and are indicative of bugs (not necessarily in this framework) or 
@@ -6379,6 +7515,111 @@ public class Wiki implements Serializable
         return temp;
     }
 
+    /**
+     *  Fetches a URL as a stream, for responses which should not be held in
+     *  memory as a whole.
+     *
+     *  @param url the url to fetch
+     *  @param caller the caller of this method
+     *  @return the (uncompressed) body of the response, to be closed by the
+     *  caller
+     *  @throws IOException if a network error occurs
+     *  @since 0.30
+     */
+    protected InputStream fetchStream(String url, String caller) throws IOException
+    {
+        logurl(url, caller);
+        return openBody(send(newRequest(url).build()));
+    }
+
+    /**
+     *  Fetches an API query and parses the response while it comes in, so
+     *  that large responses are neither held in memory as a whole nor
+     *  searched again and again. Use {@link #nextElement} to walk through it.
+     *
+     *  @param url the url to fetch
+     *  @param caller the caller of this method
+     *  @return the parser of the response, to be closed by the caller
+     *  (closes the connection as well)
+     *  @throws IOException if a network error occurs
+     *  @since 0.30
+     */
+    protected XMLStreamReader fetchXML(String url, String caller) throws IOException
+    {
+        final InputStream in = fetchStream(url, caller);
+        try
+        {
+            return new StreamReaderDelegate(XML_FACTORY.createXMLStreamReader(in, "UTF-8"))
+            {
+                @Override
+                public void close() throws XMLStreamException
+                {
+                    try
+                    {
+                        super.close();
+                    }
+                    finally
+                    {
+                        try
+                        {
+                            in.close();
+                        }
+                        catch (IOException ex)
+                        {
+                            throw new XMLStreamException(ex);
+                        }
+                    }
+                }
+            };
+        }
+        catch (XMLStreamException ex)
+        {
+            in.close();
+            throw new IOException("Could not parse the response of " + url, ex);
+        }
+    }
+
+    /**
+     *  Moves a parser from {@link #fetchXML} to the start of the next element.
+     *  @param xml the parser
+     *  @return whether there is a next element (false at the end of the
+     *  response)
+     *  @throws XMLStreamException if the response is no well-formed XML
+     *  @throws UnknownError if the API reports an error
+     *  @since 0.30
+     */
+    protected static boolean nextElement(XMLStreamReader xml) throws XMLStreamException
+    {
+        while (xml.hasNext())
+            if (xml.next() == XMLStreamConstants.START_ELEMENT)
+            {
+                // same as in fetch()
+                if (xml.getLocalName().equals("error") && xml.getAttributeValue(null, "code") != null)
+                    throw new UnknownError("MW API error. Server response was: code=\""
+                        + xml.getAttributeValue(null, "code") + "\" info=\"" + xml.getAttributeValue(null, "info") + "\"");
+                return true;
+            }
+        return false;
+    }
+
+    /**
+     *  Closes a parser from {@link #fetchXML} and its connection.
+     *  @param xml the parser
+     *  @throws IOException if the connection cannot be closed
+     *  @since 0.30
+     */
+    protected static void closeXML(XMLStreamReader xml) throws IOException
+    {
+        try
+        {
+            xml.close();
+        }
+        catch (XMLStreamException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+
     /**
      *  Does a text-only HTTP POST.
      *  @param url the url to post to
@@ -6392,27 +7633,11 @@ public class Wiki implements Serializable
     protected String post(String url, String text, String caller) throws IOException
     {
         logurl(url, caller);
-        URLConnection connection = new URL(url).openConnection();
-        setCookies(connection);
-        connection.setDoOutput(true);
-        connection.setConnectTimeout(CONNECTION_CONNECT_TIMEOUT_MSEC);
-        connection.setReadTimeout(CONNECTION_READ_TIMEOUT_MSEC);
-        connection.connect();
-        OutputStreamWriter out = new OutputStreamWriter(connection.getOutputStream(), "UTF-8");
-        out.write(text);
-        out.close();
-        BufferedReader in = new BufferedReader(new InputStreamReader(
-            zipped ? new GZIPInputStream(connection.getInputStream()) : connection.getInputStream(), "UTF-8"));
-        grabCookies(connection);
-        String line;
-        StringBuilder temp = new StringBuilder(100000);
-        while ((line = in.readLine()) != null)
-        {
-            temp.append(line);
-            temp.append("\n");
-        }
-        in.close();
-        return temp.toString();
+        HttpRequest request = newRequest(url)
+            .header("Content-Type", "application/x-www-form-urlencoded")
+            .POST(HttpRequest.BodyPublishers.ofString(text, StandardCharsets.UTF_8))
+            .build();
+        return readText(openBody(send(request)));
     }
     
     /**
@@ -6431,14 +7656,9 @@ public class Wiki implements Serializable
     {
         // set up the POST
         logurl(url, caller);
-        URLConnection connection = new URL(url).openConnection();
         String boundary = "----------NEXT PART----------";
-        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
-        setCookies(connection);
-        connection.setDoOutput(true);
-        connection.setConnectTimeout(CONNECTION_CONNECT_TIMEOUT_MSEC);
-        connection.setReadTimeout(CONNECTION_READ_TIMEOUT_MSEC);
-        connection.connect();
+        HttpRequest.Builder request = newRequest(url)
+            .header("Content-Type", "multipart/form-data; boundary=" + boundary);
         boundary = "--" + boundary + "\r\n";
         
         // write stuff to a local buffer
@@ -6469,24 +7689,9 @@ public class Wiki implements Serializable
         }
         out.writeBytes("--\r\n");
         out.close();
-        // write the buffer to the URLConnection
-        OutputStream uout = connection.getOutputStream();
-        uout.write(bout.toByteArray());
-        uout.close();
-
-        // done, read the response
-        BufferedReader in = new BufferedReader(new InputStreamReader(
-            zipped ? new GZIPInputStream(connection.getInputStream()) : connection.getInputStream(), "UTF-8"));
-        grabCookies(connection);
-        String line;
-        StringBuilder temp = new StringBuilder(100000);
-        while ((line = in.readLine()) != null)
-        {
-            temp.append(line);
-            temp.append("\n");
-        }
-        in.close();
-        return temp.toString();
+        // send the buffer and read the response
+        request.POST(HttpRequest.BodyPublishers.ofByteArray(bout.toByteArray()));
+        return readText(openBody(send(request.build())));
     }
 
     /**
@@ -6525,6 +7730,21 @@ public class Wiki implements Serializable
             log(Level.WARNING, caller, "Cannot " + caller + " - page is subject to cascading protection.");
             throw new CredentialException("Page is cascade protected");
         }
+        // protected page, title or namespace
+        if (line.contains("error code=\"protected"))
+        {
+            log(Level.WARNING, caller, "Cannot " + caller + " - permission denied.");
+            throw new CredentialException("Permission denied: page is protected.");
+        }
+        // assert=user or assert=bot failed
+        if (line.contains("error code=\"assertuserfailed\""))
+        {
+            log(Level.SEVERE, caller, "Session has expired!");
+            logout();
+            throw new CredentialExpiredException("Cookies have expired.");
+        }
+        if (line.contains("error code=\"assertbotfailed\""))
+            throw new AssertionError("Not a bot");
         // database lock (automatic retry)
         if (line.contains("error code=\"readonly\""))
         {
@@ -6566,15 +7786,13 @@ public class Wiki implements Serializable
      */
     private String parseAttribute(String xml, String attribute, int index)
     {
-        // let's hope the JVM always inlines this
-        if (xml.contains(attribute + "=\""))
-        {
-            int a = xml.indexOf(attribute + "=\"", index) + attribute.length() + 2;
-            int b = xml.indexOf('\"', a);
-            return xml.substring(a, b);
-        }
-        else
+        // search from index only, scanning the whole xml each time is quadratic
+        int a = xml.indexOf(attribute + "=\"", index);
+        if (a < 0)
             return null;
+        a += attribute.length() + 2;
+        int b = xml.indexOf('\"', a);
+        return xml.substring(a, b);
     }
     
     /**
@@ -6617,12 +7835,12 @@ public class Wiki implements Serializable
         // System.arraycopy(aaa, 0, titles, temp.length, titles.length - temp.length);
 
         // actually construct the string
-        String[] ret = new String[titles.length / slowmax + 1];
+        String[] ret = new String[(titles.length + slowmax - 1) / slowmax];
         StringBuilder buffer = new StringBuilder();
         for (int i = 0; i < titles.length; i++)
         {
             buffer.append(normalize(titles[i]));
-            if (i == titles.length - 1 || i == slowmax - 1)
+            if (i == titles.length - 1 || i % slowmax == slowmax - 1)
             {
                 ret[i / slowmax] = URLEncoder.encode(buffer.toString(), "UTF-8");
                 buffer = new StringBuilder();
@@ -6730,67 +7948,423 @@ public class Wiki implements Serializable
         // @revised 0.18 was assertions(), put some more stuff in here
 
         // perform various status checks every 100 or so edits
-        if (statuscounter > statusinterval)
+        // only the thread which resets the counter does the check
+        int count = statuscounter.getAndIncrement();
+        if (count > statusinterval && statuscounter.compareAndSet(count + 1, 0))
         {
-            // purge user rights in case of desysop or loss of other priviliges
-            if (user != null)
-                user.getUserInfo();
+            // loss of login or bot rights is caught by the assert parameter of
+            // the edits, so the user rights are not polled here any more
             // check for new messages
             if ((assertion & ASSERT_NO_MESSAGES) == ASSERT_NO_MESSAGES)
                 assert !(hasNewMessages()) : "User has new messages";
-
-            statuscounter = 0;
         }
-        else
-            statuscounter++;
 
         // do some more assertions
         if ((assertion & ASSERT_BOT) == ASSERT_BOT)
             assert user.isA("bot") : "Not a bot";
     }
 
-    // cookie methods
+    // HTTP methods
 
     /**
-     *  Sets cookies to an unconnected URLConnection and enables gzip
-     *  compression of returned text.
-     *  @param u an unconnected URLConnection
+     *  Gets the HTTP client of this wiki, creating it on first use. All
+     *  requests share its connections (kept alive, HTTP/2 where the server
+     *  supports it) and its cookie store.
+     *  @return the HTTP client
+     *  @since 0.30
      */
-    protected void setCookies(URLConnection u)
+    protected HttpClient getHttpClient()
     {
-        StringBuilder cookie = new StringBuilder(100);
-        for (Map.Entry<String, String> entry : cookies.entrySet())
+        HttpClient c = client;
+        if (c == null)
         {
-            cookie.append(entry.getKey());
-            cookie.append("=");
-            cookie.append(entry.getValue());
-            cookie.append("; ");
+            synchronized (cookies)
+            {
+                c = client;
+                if (c == null)
+                {
+                    c = HttpClient.newBuilder()
+                        .version(HttpClient.Version.HTTP_2)
+                        .connectTimeout(Duration.ofMillis(CONNECTION_CONNECT_TIMEOUT_MSEC))
+                        .followRedirects(HttpClient.Redirect.NORMAL)
+                        .cookieHandler(cookies)
+                        .build();
+                    client = c;
+                }
+            }
         }
-        u.setRequestProperty("Cookie", cookie.toString());
+        return c;
+    }
+
+    /**
+     *  Runs a call on the executor of the asynchronous methods.
+     *  @param call the call, usually a blocking method of this class
+     *  @return the result of the call, to come. Fails with the exception
+     *  thrown by the call.
+     *  @since 0.30
+     */
+    protected <T> CompletableFuture<T> async(Callable<T> call)
+    {
+        return runOn(getAsyncExecutor(), call);
+    }
+
+    /**
+     *  Runs a call on the given executor.
+     *  @param executor the executor
+     *  @param call the call
+     *  @return the result of the call, to come
+     */
+    private static <T> CompletableFuture<T> runOn(Executor executor, final Callable<T> call)
+    {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    future.complete(call.call());
+                }
+                catch (Throwable ex)
+                {
+                    future.completeExceptionally(ex);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     *  Creates the retry flag of the write methods, which starts out set in
+     *  every thread.
+     *  @return the flag
+     */
+    private static ThreadLocal<Boolean> newRetryFlag()
+    {
+        return new ThreadLocal<Boolean>()
+        {
+            @Override
+            protected Boolean initialValue()
+            {
+                return Boolean.TRUE;
+            }
+        };
+    }
+
+    /**
+     *  Gets the thread which makes the submitted edits, creating it on first
+     *  use.
+     *  @return the writer
+     */
+    private ExecutorService getEditWriter()
+    {
+        ExecutorService e = editWriter;
+        if (e == null)
+        {
+            synchronized (cookies)
+            {
+                e = editWriter;
+                if (e == null)
+                {
+                    e = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+                    {
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread t = new Thread(r, "wiki-" + domain + "-writer");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                    editWriter = e;
+                }
+            }
+        }
+        return e;
+    }
 
-        // enable gzip compression
+    /**
+     *  Gets the executor of the asynchronous methods, creating the default
+     *  pool of daemon threads on first use.
+     *  @return the executor
+     */
+    private Executor getAsyncExecutor()
+    {
+        Executor e = asyncExecutor;
+        if (e == null)
+        {
+            synchronized (cookies)
+            {
+                e = asyncExecutor;
+                if (e == null)
+                {
+                    e = Executors.newFixedThreadPool(asyncThreads, new ThreadFactory()
+                    {
+                        private int count = 0;
+
+                        public synchronized Thread newThread(Runnable r)
+                        {
+                            Thread t = new Thread(r, "wiki-" + domain + "-" + ++count);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                    asyncExecutor = e;
+                }
+            }
+        }
+        return e;
+    }
+
+    /**
+     *  Starts a request to the given URL with the user agent, the read
+     *  timeout and (if enabled) gzip compression set. Cookies are added by
+     *  the HTTP client.
+     *  @param url the URL
+     *  @return the request, defaulting to GET
+     *  @since 0.30
+     */
+    protected HttpRequest.Builder newRequest(String url)
+    {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+            .timeout(Duration.ofMillis(CONNECTION_READ_TIMEOUT_MSEC))
+            .header("User-Agent", useragent);
         if (zipped)
-            u.setRequestProperty("Accept-encoding", "gzip");
-        u.setRequestProperty("User-Agent", useragent);
+            request.header("Accept-Encoding", "gzip");
+        return request;
+    }
+
+    /**
+     *  Sends a request once the scheduler admits it and waits for the response
+     *  headers. If the database lag exceeds <tt>maxlag</tt> or the server is
+     *  overloaded, no further requests are admitted for the time the server
+     *  asks for (plus some jitter, so that clients do not come back at once)
+     *  and the request is repeated, at most <tt>maxretries</tt> times.
+     *  @param request the request
+     *  @return the response, the body is not read yet
+     *  @throws IOException if a network error occurs or the server answers
+     *  with an HTTP error
+     *  @throws FileNotFoundException if the server answers 404 or 410 (as
+     *  <tt>HttpURLConnection</tt> did), e.g. for a missing page and
+     *  <tt>action=raw</tt>
+     *  @throws HttpRetryException if the server was still lagged or
+     *  overloaded after the last retry
+     *  @since 0.30
+     */
+    protected HttpResponse<InputStream> send(HttpRequest request) throws IOException
+    {
+        for (int attempt = 0; ; attempt++)
+        {
+            scheduler.acquire(false);
+            HttpResponse<InputStream> response;
+            try
+            {
+                response = getHttpClient().send(request, HttpResponse.BodyHandlers.ofInputStream());
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while fetching " + request.uri());
+            }
+
+            // check lag and load
+            int status = response.statusCode();
+            int lag = headerInt(response, "X-Database-Lag", -5);
+            if (lag > maxlag || status == 429 || status == 503)
+            {
+                response.body().close(); // give the connection back
+                int time = headerInt(response, "Retry-After", 10);
+                String reason = lag > maxlag ? "Current database lag " + lag + " s exceeds " + maxlag + " s" : "Server overloaded (HTTP " + status + ")";
+                if (attempt >= maxretries)
+                    throw new HttpRetryException(reason + ", giving up after " + attempt + " retries: " + request.uri(), status);
+                long wait = time * 1000L + ThreadLocalRandom.current().nextLong(time * 500L + 1);
+                log(Level.WARNING, "send", reason + ", pausing all requests for " + wait + " ms.");
+                scheduler.pause(wait);
+                continue;
+            }
+            if (status == 404 || status == 410)
+            {
+                response.body().close();
+                throw new FileNotFoundException(request.uri().toString());
+            }
+            if (status >= 400)
+            {
+                response.body().close();
+                throw new IOException("Server returned HTTP response code: " + status + " for URL: " + request.uri());
+            }
+            return response;
+        }
+    }
+
+    /**
+     *  Gets the body of a response, uncompressed if the server used gzip
+     *  (whatever we asked for).
+     *  @param response the response
+     *  @return the body
+     *  @throws IOException if a network error occurs
+     */
+    private static InputStream openBody(HttpResponse<InputStream> response) throws IOException
+    {
+        String encoding = response.headers().firstValue("Content-Encoding").orElse("identity");
+        if (encoding.equalsIgnoreCase("gzip"))
+            return new GZIPInputStream(response.body(), 8192);
+        return response.body();
     }
 
     /**
-     *  Grabs cookies from the URL connection provided.
-     *  @param u an unconnected URLConnection
-     *  @param map the cookie store
+     *  Reads the text of a response, with each line terminated by "\n".
+     *  @param body the (uncompressed) body of the response
+     *  @return the text
+     *  @throws IOException if a network error occurs
+     */
+    private static String readText(InputStream body) throws IOException
+    {
+        BufferedReader in = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        String line;
+        StringBuilder text = new StringBuilder(100000);
+        while ((line = in.readLine()) != null)
+        {
+            text.append(line);
+            text.append("\n");
+        }
+        in.close();
+        return text.toString();
+    }
+
+    /**
+     *  Reads the bytes of a response.
+     *  @param body the (uncompressed) body of the response
+     *  @return the bytes
+     *  @throws IOException if a network error occurs
+     */
+    private static byte[] readBytes(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) != -1; )
+            out.write(buffer, 0, n);
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     *  Gets an integer header of a response.
+     *  @param response the response
+     *  @param name the name of the header
+     *  @param def the value if the header is missing or no integer
+     *  @return the value of the header
+     */
+    private static int headerInt(HttpResponse<?> response, String name, int def)
+    {
+        try
+        {
+            return Integer.parseInt(response.headers().firstValue(name).orElse("").trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            return def;
+        }
+    }
+
+    /**
+     *  Admits requests to the wiki: Token buckets limit the rate of all
+     *  requests and of writes, and a lagged server pauses the admission of
+     *  all requests. Waiting threads hold no lock, so a pause ends for all of
+     *  them at once. Thread safe.
      */
-    private void grabCookies(URLConnection u)
+    private static class RequestScheduler
     {
-        String headerName;
-        for (int i = 1; (headerName = u.getHeaderFieldKey(i)) != null; i++)
-            if (headerName.equals("Set-Cookie"))
+        // minimum time between two requests and two writes (in ns)
+        private long requestInterval, writeInterval;
+        // when the next request and the next write may start at the earliest
+        private long nextRequest = System.nanoTime(), nextWrite = System.nanoTime();
+        // no requests until then
+        private long pausedUntil = System.nanoTime();
+
+        private RequestScheduler(double rate, long throttle)
+        {
+            setRequestRate(rate);
+            setWriteInterval(throttle);
+        }
+
+        private synchronized void setRequestRate(double rate)
+        {
+            requestInterval = rate <= 0 ? 0 : (long)(1e9 / rate);
+        }
+
+        private synchronized void setWriteInterval(long throttle)
+        {
+            writeInterval = throttle * 1000000L;
+        }
+
+        /**
+         *  Pauses the admission of requests.
+         *  @param millis for how long
+         */
+        private synchronized void pause(long millis)
+        {
+            pausedUntil = Math.max(pausedUntil, System.nanoTime() + millis * 1000000L);
+        }
+
+        /**
+         *  Waits until a request (or write) may start.
+         *  @param write whether a write is to start (writes are requests as
+         *  well, but this only waits for the write bucket)
+         *  @throws InterruptedIOException if interrupted while waiting
+         */
+        private void acquire(boolean write) throws InterruptedIOException
+        {
+            long wait;
+            synchronized (this)
+            {
+                long now = System.nanoTime();
+                if (write)
+                {
+                    // a burst of one write
+                    nextWrite = Math.max(nextWrite, now);
+                    wait = nextWrite - now;
+                    nextWrite += writeInterval;
+                }
+                else
+                {
+                    // a burst of up to one second worth of requests
+                    long start = Math.max(Math.max(nextRequest, now - 1000000000L + requestInterval), pausedUntil);
+                    wait = start - now;
+                    nextRequest = start + requestInterval;
+                }
+            }
+            try
+            {
+                while (wait > 0)
+                {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                    // a pause may have started meanwhile
+                    synchronized (this)
+                    {
+                        wait = write ? 0 : pausedUntil - System.nanoTime();
+                    }
+                }
+            }
+            catch (InterruptedException ex)
             {
-                String cookie = u.getHeaderField(i);
-                cookie = cookie.substring(0, cookie.indexOf(';'));
-                String name = cookie.substring(0, cookie.indexOf('='));
-                String value = cookie.substring(cookie.indexOf('=') + 1, cookie.length());
-                cookies.put(name, value);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the wiki");
             }
+        }
+    }
+
+    // cookie methods
+
+    /**
+     *  Gets the cookies currently stored for this wiki.
+     *  @return the cookies (name =&gt; value)
+     *  @since 0.30
+     */
+    protected Map<String, String> getCookies()
+    {
+        Map<String, String> map = new HashMap<String, String>(12);
+        for (HttpCookie cookie : cookies.getCookieStore().getCookies())
+            map.put(cookie.getName(), cookie.getValue());
+        return map;
     }
 
     // logging methods
@@ -6915,7 +8489,7 @@ public class Wiki implements Serializable
     private void writeObject(ObjectOutputStream out) throws IOException
     {
         out.writeObject(user.getUsername());
-        out.writeObject(cookies);
+        out.writeObject(getCookies());
         out.writeInt(throttle);
         out.writeInt(maxlag);
         out.writeInt(assertion);
@@ -6937,7 +8511,7 @@ public class Wiki implements Serializable
     {
         String z = (String)in.readObject();
         user = new User(z);
-        cookies = (HashMap<String, String>)in.readObject();
+        HashMap<String, String> cookiemap = (HashMap<String, String>)in.readObject();
         throttle = in.readInt();
         maxlag = in.readInt();
         assertion = in.readInt();
@@ -6947,10 +8521,30 @@ public class Wiki implements Serializable
         statusinterval = in.readInt();
         useragent = (String)in.readObject();
 
+        // the fields above are all that is written, the others start afresh
+        scheduler = new RequestScheduler(20, throttle);
+        maxretries = 5;
+        asyncThreads = 8;
+        retry = newRetryFlag();
+        namespacesLock = new Object();
+        hiddenCategoriesLock = new Object();
+        hiddenCategoriesRefresh = 24L * 60 * 60 * 1000;
+
+        // restore the cookies for the wiki
+        cookies = new CookieManager();
+        URI uri = URI.create("https://" + domain + "/");
+        for (Map.Entry<String, String> entry : cookiemap.entrySet())
+        {
+            HttpCookie cookie = new HttpCookie(entry.getKey(), entry.getValue());
+            cookie.setPath("/");
+            cookie.setVersion(0);
+            cookies.getCookieStore().add(uri, cookie);
+        }
+
         // various other intializations
         initVars();
 
         // force a status check on next edit
-        statuscounter = statusinterval;
+        statuscounter = new AtomicInteger(statusinterval + 1);
     }
 }
@@ -3,10 +3,12 @@ package shared;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -17,12 +19,25 @@ public class WikiPage {
 	private boolean isFile;
 	private String name;
 	private Category[] parents;
-	private String[] text;
+	private WikiText text;
 	private Wiki wiki;
 	private boolean isCleanedup;
+	// three or more line breaks in a row
+	private static final Pattern EMPTY_LINES = Pattern.compile("\\n{3,}");
 	// editSummary stays empty if only minor cleanups were made
 	private String editSummary;
 	private boolean duplicateCategoryCleanup;
+	// categories of the page as known by the wiki mapped to whether they are
+	// hidden, null if they have to be fetched
+	private Map<String, Boolean> wikiCategories;
+	// the revision the text was fetched from, 0 and null if unknown
+	private long baseRevid;
+	private Calendar baseTime;
+	// the parents of all categories seen so far
+	private static volatile CategoryGraph categoryGraph = new CategoryGraph(
+			24L * 60 * 60 * 1000);
+	// asked for the parents of categories before the wiki, may be null
+	private static volatile CategoryGraphStore graphStore;
 
 	/**
 	 * Creates a new object of the class WikiPage. It is possible to clean up
@@ -35,14 +50,51 @@ public class WikiPage {
 	 *            ...)
 	 */
 	public WikiPage(Wiki wiki, String name) throws IOException {
+		this(wiki, name, wiki.getPageText(name));
+	}
+
+	/**
+	 * Creates a new object of the class WikiPage from already fetched wikitext
+	 * (e.g. by Wiki.getPageTexts)
+	 * 
+	 * @param wiki
+	 *            The wiki where the WikiPage is located
+	 * @param name
+	 *            The name of the page with prefix (e.g. "File:", "Category:",
+	 *            ...)
+	 * @param text
+	 *            The current wikitext of the page
+	 */
+	public WikiPage(Wiki wiki, String name, String text) {
 		this.isFile = name.split(":", 2)[0].toLowerCase().equals("file");
 		this.wiki = wiki;
 		this.name = name;
-		this.setPlainText(wiki.getPageText(name));
+		this.setPlainText(text);
 		this.isCleanedup = false;
 		this.editSummary = "";
 	}
 
+	/**
+	 * Creates a new object of the class WikiPage from a page record as returned
+	 * by Wiki.listAllFilesWithContent. No further requests are needed to fetch
+	 * the text and the categories of the page.
+	 * 
+	 * @param wiki
+	 *            The wiki where the WikiPage is located
+	 * @param record
+	 *            The page record containing at least "title", "text" and
+	 *            "categories", the edit is checked against "lastrevid" and
+	 *            "timestamp" if present
+	 */
+	@SuppressWarnings("unchecked")
+	public WikiPage(Wiki wiki, Map<String, Object> record) {
+		this(wiki, (String) record.get("title"), (String) record.get("text"));
+		this.wikiCategories = (Map<String, Boolean>) record.get("categories");
+		if (record.get("lastrevid") != null)
+			this.baseRevid = (Long) record.get("lastrevid");
+		this.baseTime = (Calendar) record.get("timestamp");
+	}
+
 	public WikiPage() {
 	}
 
@@ -54,6 +106,21 @@ public class WikiPage {
 		return name;
 	}
 
+	/**
+	 * @return The id of the revision the text was fetched from or 0 if unknown
+	 */
+	public long getBaseRevid() {
+		return baseRevid;
+	}
+
+	/**
+	 * @return The timestamp of the revision the text was fetched from or null
+	 *         if unknown
+	 */
+	public Calendar getBaseTime() {
+		return baseTime;
+	}
+
 	/**
 	 * Calculates the plain Wikitext of the page from the internal
 	 * representation
@@ -61,352 +128,50 @@ public class WikiPage {
 	 * @return A single String with the whole wikitext of the page
 	 */
 	public String getPlainText() {
-		String plainText = "";
-		for (int t = 1; t < text.length; t += 2)
-			plainText += text[t];
-		return plainText;
+		return text.toString();
 	}
 
 	public void setPlainText(String text) {
-		LinkedList<String> tokenizedWikitext = tokenizeWikitext(text);
-		this.text = tokenizedWikitext.toArray(new String[tokenizedWikitext
-				.size()]);
+		if (this.text == null)
+			this.text = new WikiText(text);
+		else
+			this.text.setText(text);
 	}
 
+	/**
+	 * Clean up the wikitext of the page with the rules of CleanupRules. Each
+	 * group of rules which changes the text adds its part to the edit summary.
+	 */
 	public void cleanupWikitext() {
 		this.isCleanedup = true;
-		String caseInsensitive = "(?iu)";
-		String caseInsensitiveMultiline = "(?ium)";
+		// the rules may be reloaded meanwhile, stick to one version per page
+		CleanupRules rules = CleanupRules.getActive();
 		// Stuff that involves comments to be replaced comes here
-		this.setPlainText(getPlainText()
-				.replaceAll(
-						caseInsensitive
-								+ "(<!--)? *\\{\\{ImageUpload\\|(full|basic)\\}\\} *(-->)? *\\n?",
-						"")
-				.replaceAll(
-						caseInsensitive
-								+ " *<!-- *Remove this line once you have added categories *--> *",
-						"")
-				.replaceAll(caseInsensitive + " *<!-- *categories *--> *\\n?",
-						""));
+		String plainText = getPlainText();
+		String cleanPlainText = plainText;
+		for (CleanupRules.RuleGroup group : rules.getPreprocessing())
+			if (!group.isFile() || isFile)
+				cleanPlainText = group.apply(cleanPlainText);
+		if (cleanPlainText != plainText)
+			this.setPlainText(cleanPlainText);
 		// Stuff that must ignore comments follows
-		for (int i = 0; i < text.length; ++i) {
-			String cleanText;
-			String textPart;
-			if (text[i++].equals("true"))
-				textPart = text[i];
-			else
+		for (int i = 0; i < text.getSegmentCount(); ++i) {
+			if (!text.isEditable(i))
 				continue;
-
-			if (isFile) {
-				cleanText = textPart
-						.replaceAll(
-								caseInsensitiveMultiline
-										+ "^(\\=+) *(?:summary|(?:Краткое[ _]+)?описание|Beschreibung\\,[ _]+Quelle|Quelle|Beschreibung|वर्णन|sumario|descri(ption|pción|ção do arquivo)|achoimriú)( */ *(?:summary|(?:Краткое[ _]+)?описание|Beschreibung\\,[ _]+Quelle|Quelle|Beschreibung|वर्णन|sumario|descri(ption|pción|ção do arquivo)|achoimriú))? *\\:? *\\1",
-								"$1 {{int:filedesc}} $1")
-						.replaceAll(
-								caseInsensitiveMultiline
-										+ "^(\\=+) *(\\[\\[.*?\\|)?(za(?: +d\\'uso)?|Лицензирование|li[zcs]en[zcs](e|ing|ia)?(?:\\s+information)?( */ *(za(?: +d\\'uso)?|Лицензирование|li[zcs]en[zcs](e|ing|ia)?(?:\\s+information)?))?|\\{\\{int:license\\}\\})(\\]\\])? *\\:? *\\1",
-								"$1 {{int:license-header}} $1")
-						.replaceAll(
-								caseInsensitiveMultiline
-										+ "^(\\=+) *(?:original upload ?(log|history)|\\{\\{int:wm\\-license\\-original\\-upload\\-log\\}\\}|file ?history|ursprüngliche bild-versionen) *\\:? *\\1",
-								"$1 {{original upload log}} $1")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*technique\\s*=\\s*)\\{\\{ *de *\\|\\s*öl[ -]auf[ -]holz *\\}\\}(\\||\\}\\}|\\r|\\n)",
-								"$1{{technique|oil|wood}}$2")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*technique\\s*=\\s*)\\{\\{ *de *\\|\\s*öl[ -]auf[ -]eichenholz *\\}\\}(\\||\\}\\}|\\r|\\n)",
-								"$1{{technique|oil|panel|wood=oak}}$2")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*technique\\s*=\\s*)\\{\\{ *de *\\|\\s*aquarell *\\}\\}(\\||\\}\\}|\\r|\\n)",
-								"$1{{technique|watercolor}}$2")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*technique\\s*=\\s*)\\{\\{ *de *\\|\\s*fresko *\\}\\}(\\||\\}\\}|\\r|\\n)",
-								"$1{{technique|fresco}}$2")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*(?:author|artist)\\s*=\\s*)(?:unknown?|\\{\\{\\s*unknown\\s*\\}\\}|\\?+|unkown|αγνωστος|sconosciuto|ignoto|desconocido|inconnu|not known|desconhecido|unbekannt|неизвестно|Не известен|neznana|nieznany|непознат|okänd|sconossùo|未知|ukjent|onbekend|nich kennt|ലഭ്യമല്ല|непознат|نه‌ناسرا|descoñecido|不明|ignoto|óþekktur|tak diketahui|ismeretlen|nepoznat|לא ידוע|ûnbekend|tuntematon|نامعلوم|teadmata|nekonata|άγνωστος|ukendt|neznámý|desconegut|Неизвестен|ned bekannt|غير معروف|невідомий)\\s*?\\;?\\.?\\s*?(\\||\\}\\}|\\r|\\n)",
-								"$1{{unknown|author}}$2")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*source\\s*=\\s*)(?:own work)?\\s*(?:-|;|</?br *[/\\\\]?>)?\\s*(?:own(?: work(?: by uploader)?)?|(?:œuvre |travail )?personnel(?:le)?|self[- ]made|création perso|selbst fotografiert|obra pr[òo]pia|trabajo propr?io)\\s*?(?:\\(own work\\))?\\.? *(\\||\\}\\}|\\r|\\n)",
-								"$1{{own}}$2")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*source\\s*=\\s*)(?:own[^a-z]*work|opera[^a-z]*propria|trabajo[^a-z]*propio|travail[^a-z]*personnel|eigenes[^a-z]*werk|eigen[^a-z]*werk|собственная[^a-z]*работа|投稿者自身による作品|自己的作品|praca[^a-z]*pw[łl]asna|Obra(?:[^a-z]*do)?[^a-z]*pr[oó]prio|Treball[^a-z]*propi|Собствена[^a-z]*творба|Vlastní[^a-z]*dílo|Eget[^a-z]*arbejde|Propra[^a-z]*verko|Norberak[^a-z]*egina|عمل[^a-z]*شخصي|اثر[^a-z]*شخصی|자작|अपना[^a-z]*काम|נוצר[^a-z]*על[^a-z]*ידי[^a-z]*מעלה[^a-z]*היצירה|Karya[^a-z]*sendiri|Vlastito[^a-z]*djelo[^a-z]*postavljača|Mano[^a-z]*darbas|A[^a-z]*feltöltő[^a-z]*saját[^a-z]*munkája|Karya[^a-z]*sendiri|Eget[^a-z]*verk|Oper[aă][^a-z]*proprie|Vlastné[^a-z]*dielo|Lastno[^a-z]*delo|Сопствено[^a-z]*дело|Oma[^a-z]*teos|Eget[^a-z]*arbete|Yükleyenin[^a-z]*kendi[^a-z]*çalışması|Власна[^a-z]*робота|Sariling[^a-z]*gawa|eie[^a-z]*werk|сопствено[^a-z]*дело|Eige[^a-z]*arbeid|პირადი[^a-z]*ნამუშევარი)\\;?\\.? *(\\||\\}\\}|\\r|\\n)",
-								"$1{{own}}$2")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*source\\s*=\\s*)(((?:\\'\\'+)?)([\\\"\\']?)(?:selbst\\W*erstellte?s?|selbst\\W*gezeichnete?s?|self\\W*made|eigene?s?)\\W*(?:arbeit|aufnahme|(?:ph|f)oto(?:gra(?:ph|f)ie)?)?\\.?\\4\\3) *(\\||\\}\\}|\\r|\\n)",
-								"$1{{own}} ({{original text|1=$2|nobold=1}})$5")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*source\\s*=\\s*)(?:self[^a-z]*photographed|selbst[^a-z]*(?:aufgenommen|(?:f|ph)otogra(?:f|ph)iert?)|投稿者撮影|投稿者の撮影)\\s*?\\.? *(\\||\\}\\}|\\r|\\n)",
-								"$1{{self-photographed}}$2")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*author\\s*=\\s*)(?:anonym(?:e|ous)?|anonyymi|anoniem|an[oòóô]n[yi]mo?|ismeretlen|不明（匿名）|미상|ανώνυμος|аноним(?:ен|ный художник)|neznámy|nieznany|مجهول|Ананім|Anonymní|Ezezaguna|Anonüümne|אלמוני|អនាមិក|Anonimas|അജ്ഞാതം|Анонимный автор|佚名)\\s*?\\.?\\;?\\s*?(\\||\\}\\}|\\r|\\n)",
-								"$1{{anonymous}}$2")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*author\\s*=\\s*)(?:unknown\\s*photographer|photographer\\s*unknown)\\s*?\\;?\\.?\\s*?(\\||\\}\\}|\\r|\\n)",
-								"$1{{unknown photographer}}$2")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*gallery\\s*=\\s*)private(?: collection)? *(\\||\\}\\}|\\r|\\n)",
-								"$1{{private collection}}$2")
-						.replaceAll(
-								caseInsensitive
-										+ "The original description page (?:is\\/was|is|was) \\[(?:https?:)?\\/\\/(?:www\\.)?((?:[a-z\\-]+\\.)?wik[a-z]+(?:\\-old)?)\\.org\\/w((?:\\/shared)?)\\/index\\.php\\?title\\=(?:[a-z]+)(?:\\:|%3A)([^\\[\\]\\|}{]+?) +here(?:\\]\\.?|\\.?\\])(\\s+All following user names refer to (?:\\1(?:\\.org)?\\2|(?:wts|shared)\\.oldwikivoyage)\\.?)?",
-								"{{original description page|$1$2|$3}}")
-						.replaceAll(
-								caseInsensitive
-										+ "This file was originally uploaded at ([a-z\\-]+\\.wik[a-z]+) as \\[(?:https?:)?\\/\\/\\1\\.org\\/wiki\\/(?:[a-z]+)(?:\\:|%3A)([\\w\\%\\-\\.\\~\\:\\/\\?\\#\\[\\]\\@\\!\\$\\&\\'\\(\\)\\*\\+\\,\\;\\=]+?)(?: |\\])+[^\\]\\n]*\\](?:\\s*\\,?\\s*before it was transferr?ed to commons)?\\.?",
-								"{{original description page|$1|$2}}")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\=+\\s*\\{\\{ *original[ _]+upload[ _]+log *\\}\\}\\s*\\=+\\s*)(\\{\\{ *original[ _]+description[ _]+page *\\|\\s*([a-z\\-]+\\.w[a-z]+)\\s*\\|\\s*[^}\\|\\[{]+\\}\\})\\s*using\\s*\\[\\[\\:en\\:WP\\:FTCG\\|FtCG\\]\\]\\.?",
-								"$1{{transferred from|$3||[[:en:WP:FTCG|FtCG]]}} $2");
-				cleanText = multipleReplaceAll(
-						cleanText,
-						caseInsensitiveMultiline
-								+ "^ *(\\=+) *(.*?) *\\=+ *[\\r\\n]+\\=+ *\\2 *\\=+ *$",
-						"$1 $2 $1");
-				if (!(textPart.equals(cleanText))) {
-					if (!editSummary
-							.contains("[[Com:IntRegex|Internationalisation]]. "))
-						this.editSummary = editSummary
-								+ "[[Com:IntRegex|Internationalisation]]. ";
-					textPart = cleanText;
-				}
-				cleanText = textPart
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*description\\s*=)\\s*(?:\\{\\{ *description missing *\\}\\}|\\s*description missing\\s*?|(?:\\{\\{en *\\|) *(?:'')?no original description(?:'')? *(?:\\}\\})|(?:'')?no original description(?:'')? *) *(\\||\\}\\}|\\r|\\n)",
-								"$1$2")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*permission\\s*=)\\s*((?:\\'\\')?)(?:-|下記を参照|see(?: licens(?:e|ing|e +section))?(?: below)?|yes|oui)\\s*?\\,?\\.?;?\\s*?\\2\\s*?(\\||\\}\\}|\\r|\\n)",
-								"$1$3")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*other[_ ]versions\\s*=)\\s*(?:<i>)?(?:-|no|none?(?: known)?|nein|yes|keine|\\-+)\\.?(?:</i>)? *(\\||\\}\\}|\\r|\\n)",
-								"$1$2")
-						.replaceAll(
-								caseInsensitive
-										+ "(?:move approved by: *\\[\\[:?User:[^\\]\\[{}]*\\]\\]\\.?)?((?:.|\\n)*?)(?:This image was moved from *\\[\\[:?(?:File|image):?[^\\]\\[{}]*\\]\\]\\.?)?",
-								"$1")
-						.replaceAll(
-								caseInsensitive
-										+ "\\{\\{\\s*(?:Ship|Art\\.|bots|football[ _]+kit|template[ _]+other|s|tl|tlxs|template|template[ _]+link|temp|tls|tlx|tl1|tlp|tlsx|tlsp|mbox|tmbox(?:\\/core)?|lan|jULIANDAY|file[ _]+title|nowrap|plural|time[ _]+ago|time[ _]+ago\\/core|toolbar|red|green|sp|other date|max|max\\/2|str[ _]+left|str[ _]+right|music|date|cite[ _]+book|citation\\/core|citation\\/make[ _]+link|citation\\/identifier|citation|cite|cite[ _]+book|citation\\/authors|citation\\/make[ _]+link|cite[ _]+journal|cite[ _]+patent|cite[ _]+web|hide in print|only in print|parmPart|error|crediti|fontcolor|transclude|trim|navbox|navbar|section[ _]+link|yesno|center|unused|•|infobox\\/row)\\s*\\}\\}",
-								"")
-						.replaceAll(
-								caseInsensitive
-										+ "\\{\\{\\s*PermissionOTRS\\s*\\|\\s*(?:https?:)?\\/\\/ticket\\.wikimedia\\.org\\/otrs\\/index\\.pl\\?Action\\s*\\=\\s*AgentTicketZoom&(?:amp;)?TicketNumber\\=(\\d+)\\s*\\}\\}",
-								"{{PermissionOTRS|id=$1}}");
-				if (!(textPart.equals(cleanText))) {
-					if (!editSummary
-							.contains("Removing redundant information. "))
-						this.editSummary = editSummary
-								+ "Removing redundant information. ";
-					// per
-					// https://commons.wikimedia.org/wiki/Commons:IntRegex#.7B.7BInformation.7D.7D_fields
-					textPart = cleanText;
-				}
-				cleanText = textPart
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(?:created|made|taken)? *([0-9]{4})(-| |/|\\.|)(0[1-9]|1[0-2])\\3(1[3-9]|2[0-9]|3[01])(\\||\\}\\}|\\r|\\n)",
-								"$1$2-$4-$5$6")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(?:created|made|taken)? *([0-9]{4})(-| |/|\\.|)(1[3-9]|2[0-9]|3[01])\\3(0[1-9]|1[0-2])(\\||\\}\\}|\\r|\\n)",
-								"$1$2-$5-$4$6")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(?:created|made|taken)? *(0[1-9]|1[0-2])(-| |/|\\.|)(1[3-9]|2[0-9]|3[01])\\3([0-9]{4})(\\||\\}\\}|\\r|\\n)",
-								"$1$5-$2-$4$6")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(?:created|made|taken)? *(1[3-9]|2[0-9]|3[01])(-| |/|\\.|)(0[1-9]|1[0-2])\\3(2[0-9]{3}|1[89][0-9]{2})(\\||\\}\\}|\\r|\\n)",
-								"$1$5-$4-$2$6")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(?:created|made|taken)? *\\{\\{date\\|([0-9]{4})\\|(0[1-9]|1[012])\\|(0?[1-9]|1[0-9]|2[0-9]|3[01])\\}\\}(\\||\\}\\}|\\r|\\n)",
-								"$1$2-$3-$4$5")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*(?:date|year)\\s*=\\s*)(?:unknown?(?:\\s*date)?|\\?|unbekannte?s?(\\s*datum)?)",
-								"$1{{unknown|date}}")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*(?:date|year)\\s*=\\s*)(\\d\\d?)(?:st|nd|rd|th) *century *(\\||\\}\\}|\\r|\\n)",
-								"$1{{other date|century|$2}}$3")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*(?:date|year)\\s*=\\s*)(?:cir)?ca?\\.? *(\\d{4}) *(\\||\\}\\}|\\r|\\n)",
-								"$1{{other date|~|$2}}$3")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*(?:date|year)\\s*=\\s*)(?:unknown|\\?+)\\.? *(\\||\\}\\}|\\r|\\n)",
-								"$1{{other date|?}}$2")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\{\\{original upload date\\|\\d{4}\\-\\d{2}\\-\\d{2}\\}\\})\\s*(?:\\(original\\s*upload\\s*date\\)|\\(\\s*first\\s*version\\s*\\);?\\s*\\{\\{original upload date\\|\\d{4}\\-\\d{2}\\-\\d{2}\\}\\}\\s*\\(\\s*last\\s*version\\s*\\))",
-								"$1")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(?:\\{\\{date\\|\\s*(\\d+)\\s*\\|\\s*(\\d+)\\s*\\|\\s*(\\d+)\\s*\\}\\}|(\\d{4})\\-(\\d{2})\\-(\\d{2}))\\s*\\(\\s*(original upload date|according to EXIF data)\\s*\\)\\s*?(\\||\\}\\}|\\r|\\n)",
-								"$1{{$8|$2$5-$3$6-$4$7}}$9")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)\\{\\{\\s*date\\s*\\|\\s*(\\d+)\\s*\\|\\s*(\\d+)\\s*\\|\\s*(\\d+)\\s*\\}\\}\\s*\\(\\s*first\\s*version\\s*\\)\\;?\\s*\\{\\{\\s*date\\s*\\|\\s*\\d+\\s*\\|\\s*\\d+\\s*\\|\\s*\\d+\\s*\\}\\}\\s*\\(\\s*last\\s*version\\s*\\)",
-								"$1{{original upload date|$2-$3-$4}}")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(\\d{4})\\-(\\d{2})\\-(\\d{2})\\s*\\(\\s*first\\s*version\\s*\\)\\;?\\s*(\\d{4})\\-(\\d{2})\\-(\\d{2})\\s*\\(\\s*last\\s*version\\s*\\)",
-								"$1{{original upload date|$2-$3-$4}}")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*\\(?\\s*)(?:Uploaded\\s*on\\s*Commons\\s*at\\s*[\\d\\-]*\\s*[\\d:]*\\s*\\(?UTC\\)?\\s*\\/?\\s*)?Original(?:ly)?\\s*uploaded\\s*at\\s*([\\d\\-]*)\\s*[\\d:]*",
-								"$1{{original upload date|$2}}")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(\\d{1,3}0)\\s*s",
-								"$1{{other date|s|$2}}")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(?:after|post|بعد|desprès|po|nach|efter|μετά από|después de|pärast|پس از|après|despois do|לאחר|nakon|dopo il|по|na|após|după|после)\\s*(\\d{4})",
-								"$1{{other date|after|$2}}")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(?:before|vor|pre|до|vör|voor|prior to|ante|antes de|قبل|Преди|abans|před|før|πριν από|enne|پیش از|ennen|avant|antes do|לפני|prije|prima del|пред|przed|înainte de|ранее|pred|före)[\\s\\-]*(\\d{4})",
-								"$1{{other date|before|$2}}")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(\\d{4})\\s*(?:or|أو|o|nebo|eller|oder|ή|ó|või|یا|tai|ou|או|vagy|または|или|അഥവാ|of|lub|ou|sau|или|ali|หรือ|和)\\s*?(\\d{4})",
-								"$1{{other date|or|$2|$3}}")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(?:sometime\\s*)?(?:between)\\s*(\\d{4})\\s*(?:and|\\-)?\\s*?(\\d{4})",
-								"$1{{other date|between|$2|$3}}")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(?:primavera(?:\\s*de)?|jaro|forår|frühling|spring|printempo|Kevät|printemps|пролет|Vörjohr|früh[ \\-]?jahr|voorjaar|wiosna|primăvara(?:\\s*lui)?|весна|pomlad|våren|spring)\\s*(\\d{4})",
-								"$1{{other date|spring|$2}}")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(?:estiu|léto|somero|verano|Kesä|été|verán|estate|лето|zomer|lato|verão(?:\\s*de)?|vara(?:\\s*lui)?|poletje|sommaren|sommer|summer)\\s*(\\d{4})",
-								"$1{{other date|summer|$2}}")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(?:fall|autumn|tardor|podzim|Efterår|Herbst|aŭtuno|otoño|Syksy|outono(?:\\s*de)?automne|outono|autunno|есен|Harvst|herfst|jesień|toamna(?:\\s*lui)?|осень|jesen|hösten)\\s*(\\d{4})",
-								"$1{{other date|fall|$2}}")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(?:winter|hivern|zima|Vinter|vintro|invierno|Talvi|hiver|inverno(?:\\s*de)?|зима|iarna(?:\\s*lui)?|зима|zima|vintern)\\s*(\\d{4})",
-								"$1{{other date|winter|$2}}")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(?:[zc]ir[kc]a|ungefähr|about|around|vers|حوالي|cca|etwa|περ\\.?|cerca\\s*de|حدود|noin|cara a|oko|około|около|c[\\:\\. ]?a?[\\:\\. ]?)\\s*(\\d{3,4})\\s*(?:\\-\\s*(?:[zc]ir[kc]a|ungefähr|about|around|vers|حوالي|cca|etwa|περ\\.?|cerca\\s*de|حدود|noin|cara a|oko|około|около|c[\\:\\. ]?a?[\\:\\. ]?)?\\s*(\\d{3,4}))?",
-								"$1{{other date|circa|$2|$3}}")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\{\\{other date\\|circa\\|\\d+)\\|\\}\\}",
-								"$1}}")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)(?:[zc]ir[kc]a|ungefähr|about|around|vers|حوالي|cca|etwa|περ\\.?|cerca\\s*de|حدود|noin|cara a|oko|około|около|c[\\:\\. ]?a?[\\:\\. ]?)\\s*(\\d{3,4})",
-								"$1{{other date|circa|$2}}")
-						.replaceAll(
-								caseInsensitive
-										+ "(\\|\\s*date\\s*=\\s*)\\{\\{\\s*ISOdate\\s*\\|\\s*([\\d\\-]+)\\s*\\}\\}\\s*\\(\\s*from\\s*metadata\\s*\\)",
-								"$1{{according to EXIF|$2}}");
-				if (!(textPart.equals(cleanText))) {
-					if (!editSummary
-							.contains("[[Com:Regex#Dates|Standardizing dates]]. "))
-						this.editSummary = editSummary
-								+ "[[Com:Regex#Dates|Standardizing dates]]. ";
-					textPart = cleanText;
-				}
-				cleanText = textPart.replaceAll("__ *NOTOC *__", "")
-				// This is commented out due to the fact stated at
-				// https://commons.wikimedia.org/wiki/Commons:Regex#Junk_cleanup
-				// .replaceAll(caseInsensitive+"\\{\\{en *(?:\\| *1=)? *\\}\\} *(\\||\\}\\}|\\r|\\n)","$1")
-				;
-				textPart = cleanText;
-				// only minor cleanup per
-				// https://commons.wikimedia.org/wiki/Commons:Regex#Junk_cleanup
-			}
-			// only minor cleanup per
-			// https://commons.wikimedia.org/wiki/Commons:Regex#Formatting
-			textPart = textPart.replaceAll("\\n{3,}", "\n\n");
-			cleanText = textPart
-					.replaceAll(
-							caseInsensitive
-									+ "\\[https?://([a-z0-9\\-]{2,3})\\.(?:(w)ikipedia|(wikt)ionary|wiki(n)ews|wiki(b)ooks|wiki(q)uote|wiki(s)ource|wiki(v)ersity|wiki(voy)age)\\.(?:com|net|org)/wiki/([^\\]\\[{|}\\s\"]*) +([^\\n\\]]+)\\]",
-							"[[$2$3$4$5$6$7$8$9:$1:$10|$11]]")
-					.replaceAll(
-							caseInsensitive
-									+ "\\[https?://(?:(m)eta|(incubator)|(quality))\\.wikimedia\\.(?:com|net|org)/wiki/([^\\]\\[{|}\\s\"]*) +([^\\n\\]]+)\\]",
-							"[[$1$2$3:$4|$5]]")
-					.replaceAll(
-							caseInsensitive
-									+ "\\[https?://commons\\.wikimedia\\.(?:com|net|org)/wiki/([^\\]\\[{|}\\s\"]*) +([^\\n\\]]+)\\]",
-							"[[:$1|$2]]");
-			if (!(textPart.equals(cleanText))) {
-				if (!editSummary
-						.contains("[[Com:Regex#Links|Standardizing interwikilinks]]. "))
-					this.editSummary = editSummary
-							+ "[[Com:Regex#Links|Standardizing interwikilinks]]. ";
-				textPart = cleanText;
-			}
-			cleanText = textPart
-					.replaceAll(
-							caseInsensitive
-									+ " *\\[\\[category *: *([^]]*?) *(\\|[^]]*)?\\]\\] *",
-							"[[Category:$1$2]]")
-					.replaceAll(
-							caseInsensitive
-									+ "\\[\\[category: *\\]\\](?:\\n( *\\[\\[category:))?",
-							"$1");
-			cleanText = multipleReplaceAll(
-					cleanText,
-					caseInsensitive
-							+ "\\[\\[category:([^]]+)\\]\\] *\\[\\[category:([^]]+)\\]\\]",
-					"[[Category:$1]]\n[[Category:$2]]");
-			cleanText = multipleReplaceAll(cleanText, caseInsensitive
-					+ "(\\[\\[category:)([^]]+\\]\\])(.*?)\\1\\2\\n?", "$1$2$3");
-			if (!(textPart.equals(cleanText))) {
-				if (!editSummary
-						.contains("[[Com:Regex#Categories|Category-cleanup]]. "))
-					this.editSummary = editSummary
-							+ "[[Com:Regex#Categories|Category-cleanup]]. ";
+			String textPart = text.getSegment(i);
+
+			for (CleanupRules.RuleGroup group : rules.getGroups()) {
+				if (group.isFile() && !isFile)
+					continue;
+				String cleanText = group.apply(textPart);
+				if (cleanText == textPart)
+					continue;
+				String summary = group.getSummary();
+				if (summary != null && !editSummary.contains(summary))
+					this.editSummary = editSummary + summary;
 				textPart = cleanText;
 			}
-			textPart = multipleReplaceAll(textPart, caseInsensitive
-					+ "(\\[\\[category:[^]]+\\]\\]\\n)\\n+(\\[\\[category:)",
-					"$1$2");
-			cleanText = textPart
-					.replaceAll(caseInsensitive + "</?br( )?(/)?\\\\?>",
-							"<br$1$2>")
-					.replaceAll(
-							caseInsensitive
-									+ "(\\{\\{\\}\\}|\\[\\[\\]\\]|<gallery></gallery>|\\[\\[:?File *: *\\]\\])",
-							"");
-			if (!(textPart.equals(cleanText))) {
-				if (!editSummary
-						.contains("[[Com:Regex#Formatting|Format-cleanup]]. "))
-					this.editSummary = editSummary
-							+ "[[Com:Regex#Formatting|Format-cleanup]]. ";
-				textPart = cleanText;
-			}
-			text[i] = textPart;
+			text.setSegment(i, textPart);
 		}
 	}
 
@@ -461,9 +226,8 @@ public class WikiPage {
 	 * Clean up the [[com:OVERCAT]]-problem for the file
 	 * 
 	 * @param depth
-	 *            The depth which the category tree should be examined. WARNING:
-	 *            Set to "1" if you are unsure about possible loops in the tree
-	 *            which will most likely cause unexpected behavior
+	 *            The depth which the category tree should be examined (loops in
+	 *            the tree are safe)
 	 * @param ignoreHidden
 	 *            If hidden categories should be ignored during the search
 	 * @throws IOException
@@ -476,19 +240,15 @@ public class WikiPage {
 		Category[] parentCategories = getParentCatsNoDupes();
 		boolean cleanupAnyway = !editSummary.isEmpty()
 				|| duplicateCategoryCleanup;
-		// String array returned via the API, no duplicate entries, no sortkey,
-		// no prefix
-		String[] allGrandparentCategories;
+		// ids of all ancestors of the categories known by the wiki
+		BitSet allGrandparentCategories;
 		{
-			String[] pageCategories = wiki.getCategories(name, false,
-					ignoreHidden);
+			String[] pageCategories = getWikiCategories(ignoreHidden);
 			if (pageCategories.length == 1 && !cleanupAnyway)
 				// no way of COM:OVERCAT and nothing to clean up
 				return;
-			Set<String> listSet = all_grand_parentCats(wiki, pageCategories,
+			allGrandparentCategories = ancestorIds(wiki, pageCategories,
 					depth, ignoreHidden);
-			allGrandparentCategories = listSet.toArray(new String[listSet
-					.size()]);
 		}
 
 		Object[] cleanedCatsAndText = returnCleanedCatsAndText(cleanupAnyway,
@@ -506,8 +266,10 @@ public class WikiPage {
 						"(?iu)" + "\\[\\[Category:" + "\\Q" + z.getName()
 								+ "\\E" + "(\\|[^}#\\]\\[{><]*)?" + "\\]\\]",
 						"");
-			this.setPlainText((getPlainText() + cleanCategoryWikitext)
-					.replaceAll("\\n{3,}", "\n\n"));
+			text.append(cleanCategoryWikitext);
+			Matcher emptyLines = EMPTY_LINES.matcher(getPlainText());
+			if (emptyLines.find())
+				setPlainText(emptyLines.replaceAll("\n\n"));
 			this.parents = cleanParentCategories;
 			if (numberOfRemovedCategories > 0) {
 				String logSummary = "Removed "
@@ -532,12 +294,8 @@ public class WikiPage {
 	 * 
 	 */
 	public void cleanupUndercat() throws IOException {
-		// TODO fetch request _may_ already been done
-		// -> save them for later use and use them now!
-		String[] allCategories = wiki.getCategories(this.getName(), false,
-				false);
-		String[] allNotHiddenCategories = wiki.getCategories(this.getName(),
-				false, true);
+		String[] allCategories = getWikiCategories(false);
+		String[] allNotHiddenCategories = getWikiCategories(true);
 		// count the number of not hidden categories which likely serve only for
 		// {{UNC}}-maintenance
 		int UNCtotal = 0;
@@ -545,10 +303,8 @@ public class WikiPage {
 		for (String c : allCategories)
 			if (c.contains("needing categories")) {
 				++UNCtotal;
-				String[] parentsTemp = wiki.getCategories(c, false, true);
-				for (String t : parentsTemp)
-					if (t.equals("Category:Hidden categories"))
-						++UNChidden;
+				if (wiki.isHiddenCategory(c))
+					++UNChidden;
 			}
 		if (allNotHiddenCategories.length - (UNCtotal - UNChidden) > 1) {
 			// Very likely we have _two_ valid not hidden categories
@@ -566,7 +322,7 @@ public class WikiPage {
 		}
 		if (allNotHiddenCategories.length == 0 && UNCtotal == 0) {
 			// likely we do _not_ have the {{unc}} template
-			this.setPlainText(this.getPlainText() + "\n{{subst:unc}}");
+			text.append("\n{{subst:unc}}");
 			this.editSummary = getEditSummary()
 					+ "Marked as [[CAT:UNCAT|uncategorized]]. ";
 		}
@@ -582,15 +338,16 @@ public class WikiPage {
 	 *            categories or not
 	 * @param parentCategories
 	 *            The (not yet clean) parent-categories
-	 * @param grandparentStrings
-	 *            The previously determined categories which are supposed to be
-	 *            the grandparent categories
+	 * @param grandparents
+	 *            The ids in the category graph of the previously determined
+	 *            categories which are supposed to be the grandparent
+	 *            categories
 	 * @return The three items bundled into a JAVA-Object array
 	 * @throws IOException
 	 */
 	private Object[] returnCleanedCatsAndText(boolean cleanupAnyway,
 			boolean ignoreHidden, int depth, Category[] parentCategories,
-			String[] grandparentStrings) throws IOException {
+			BitSet grandparents) throws IOException {
 		Category[] cleanCategories = new Category[parentCategories.length];
 		String categoryWikitext = "";
 		String removedCatsWikitext = "";
@@ -601,20 +358,18 @@ public class WikiPage {
 		for (int i = 0; i < parentCategories.length; i++) {
 			cleanCategories[i] = new Category(parentCategories[i].getName(),
 					parentCategories[i].getSortkey()); // clone
-			for (int r = 0; r < grandparentStrings.length; r++) {
-				if ((parentCategories[i].getName().equals(grandparentStrings[r]
-						.split(":", 2)[1]))) {
-					removedCatsWikitext = removedCatsWikitext
-							+ "[[:Category:"
-							+ parentCategories[i].getName()
-							+ "]]"
-							+ childrenOfRemovedCat("Category:"
-									+ parentCategories[i].getName(), depth,
-									ignoreHidden) + ", ";
-					revokedCounter++;
-					cleanCategories[i].setName(revokedFlag);
-					break;
-				}
+			int id = categoryGraph.getId("Category:"
+					+ parentCategories[i].getName());
+			if (id >= 0 && grandparents.get(id)) {
+				removedCatsWikitext = removedCatsWikitext
+						+ "[[:Category:"
+						+ parentCategories[i].getName()
+						+ "]]"
+						+ childrenOfRemovedCat("Category:"
+								+ parentCategories[i].getName(), depth,
+								ignoreHidden) + ", ";
+				revokedCounter++;
+				cleanCategories[i].setName(revokedFlag);
 			}
 		}
 		// create a new array for the clean categories if needed
@@ -658,9 +413,12 @@ public class WikiPage {
 		if (depth > 1)
 			return "";
 		String returnString = " which is parent of ";
-		String[] pageCategories = wiki.getCategories(name, false, ignoreHidden);
-		for (String pc : pageCategories) {
-			String[] parentsOfPC = wiki.getCategories(pc, false, ignoreHidden);
+		String[] pageCategories = getWikiCategories(ignoreHidden);
+		String[][] parentsOfPCs = getParentCategories(wiki, pageCategories,
+				ignoreHidden);
+		for (int p = 0; p < pageCategories.length; ++p) {
+			String pc = pageCategories[p];
+			String[] parentsOfPC = parentsOfPCs[p];
 			for (String potc : parentsOfPC) {
 				if (potc.equals(removedParent)) {
 					returnString = returnString + "[[:" + pc + "]] and ";
@@ -671,6 +429,34 @@ public class WikiPage {
 		return returnString.substring(0, returnString.length() - 5);
 	}
 
+	/**
+	 * Returns the categories of the page as known by the wiki. They are only
+	 * fetched if they did not come along with the page.
+	 * 
+	 * @param ignoreHidden
+	 *            If hidden categories should be skipped
+	 * @return The category names (with "Category:" prefix, no sortkey)
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	private String[] getWikiCategories(boolean ignoreHidden)
+			throws IOException {
+		if (wikiCategories == null)
+			// one request for both the hidden and the not hidden ones
+			wikiCategories = (Map<String, Boolean>) wiki
+					.getCategories(new String[] { name })[0].get("categories");
+		return categoryNames(wikiCategories, ignoreHidden);
+	}
+
+	private static String[] categoryNames(Map<String, Boolean> categories,
+			boolean ignoreHidden) {
+		List<String> names = new ArrayList<String>(categories.size());
+		for (Map.Entry<String, Boolean> c : categories.entrySet())
+			if (!ignoreHidden || !c.getValue())
+				names.add(c.getKey());
+		return names.toArray(new String[names.size()]);
+	}
+
 	/**
 	 * Replace all matches of the regex with the replacement string in the text
 	 * string. Ignore all pre, nowiki or comments
@@ -679,111 +465,282 @@ public class WikiPage {
 	 *            The regex pattern
 	 * @param replacement
 	 *            All matches get substituted by this
-	 * @return
 	 */
 	public void replaceAllInPagetext(String regex, String replacement) {
-		for (int p = 0; p < text.length; ++p) {
-			if (text[p].equals("true"))/* || text[p].equals("<code>")) */{
-				++p;
-				text[p] = text[p].replaceAll(regex, replacement);
-			} else
-				++p;
-		}
+		text.replaceAll(Pattern.compile(regex), replacement);
 	}
 
 	/**
-	 * Returns a List with 2*n elements where n in {1, 2, 3, ... }. The elements
-	 * with odd "indexes" indicate whether the String at the next even "index"
-	 * should be edited or not. (Has "true" if the next element can be edited
-	 * and the prefix if the next element should not be edited) [prefix may be
-	 * pre (in <>), nowiki (in <>) or <!--]
+	 * Creates a string-set of all grandparent categories up to the given depth
 	 * 
-	 * @param text
-	 *            The text to be tokenized
-	 * @return A string List with the text in the elements and additional
-	 *         indicators before each text element
+	 * @param wiki
+	 *            The wiki to connect to
+	 * @param categories
+	 *            The categories to be evaluated by the method (with
+	 *            "Category:" prefix)
+	 * @param depth
+	 *            The depth to be examined (depth == 1 means only the parents)
+	 * @param ignoreHidden
+	 *            If hidden categories should not be considered during search
+	 * @return The string-set of all ancestors (with "Category:" prefix, no
+	 *         sortkey, no duplicate entries)
+	 * @throws IOException
+	 * @see #ancestorDepths
 	 */
-	private static LinkedList<String> tokenizeWikitext(String text) {
-		LinkedList<String> list = new LinkedList<String>();
-		String[][] preserve = {
-				{ "<!--", "-->" },
-				{ "<nowiki>", "</nowiki>" },
-				{ "<pre>", "</pre>" },//
-				{ "<source>", "</source>" },
-				{ "<syntaxhighlight", "</syntaxhighlight>" },
-				{ "<templatedata", "</templatedata>" } };
-		// TODO suppress the false positives by rewriting the code somehow.
-		// (Note the missing '>')
-		// preserve stolen from
-		// https://commons.wikimedia.org/w/index.php?diff=113112713
-
-		int smallestIndexOfPrefix = text.length();
-		int prefixWithSmallestIndex = -1;
-		String textInLowerCase = text.toLowerCase();
-		for (int e = 0; e < preserve.length; ++e) {
-			int indexOfPrefixE = textInLowerCase.indexOf(preserve[e][0]);
-			if (indexOfPrefixE > -1 && indexOfPrefixE < smallestIndexOfPrefix) {
-				smallestIndexOfPrefix = indexOfPrefixE;
-				prefixWithSmallestIndex = e;
-			}
-		}
-		if (smallestIndexOfPrefix == text.length()) {
-			list.add("true");
-			list.add(text);
-			return list;
-		}
-		String pre = preserve[prefixWithSmallestIndex][0];
-		String suf = preserve[prefixWithSmallestIndex][1];
-
-		String[] split = text.split("(?i)" + pre, 2);
-		list.add("true");
-		list.add(split[0]);
-		String[] split2 = split[1].split("(?i)" + suf, 2);
-		list.add(pre);// add pre instead of false!
-		if (split2.length == 2) {
-			// suffix found
-			list.add(pre + split2[0] + suf);
-			list.addAll(tokenizeWikitext(split2[1]));
-		} else
-			// suffix not found
-			list.add(pre + split[1]);
-		return list;
+	public static Set<String> all_grand_parentCats(Wiki wiki,
+			String[] categories, int depth, boolean ignoreHidden)
+			throws IOException {
+		return ancestorDepths(wiki, categories, depth, ignoreHidden).keySet();
 	}
 
 	/**
-	 * A static method which calls itself in a recursive manner to create a
-	 * string-set of all grandparent categories
+	 * Walks up the category tree, see ancestorLevels()
 	 * 
 	 * @param wiki
 	 *            The wiki to connect to
 	 * @param categories
-	 *            The categories to be evaluated by the method (Must not include
-	 *            the "Category:" prefix)
+	 *            The categories to start with (with "Category:" prefix)
 	 * @param depth
-	 *            The depth to be examined (depth == 1 means no recursion at
-	 *            all)
+	 *            The depth to be examined (depth == 1 means only the parents)
 	 * @param ignoreHidden
 	 *            If hidden categories should not be considered during search
-	 * @return The string-set which was recursively generated (Contains only the
-	 *         Category name, no prefix, no sortkey, no duplicate entries)
+	 * @return All ancestors (with "Category:" prefix) mapped to the level on
+	 *         which they were found first (1 = parent)
 	 * @throws IOException
 	 */
-	public static Set<String> all_grand_parentCats(Wiki wiki,
+	public static Map<String, Integer> ancestorDepths(Wiki wiki,
 			String[] categories, int depth, boolean ignoreHidden)
 			throws IOException {
-		if (depth <= 0) {
-			Set<String> emptySet = new LinkedHashSet<String>();
-			return emptySet;
-		}
-		Set<String> subSet = new LinkedHashSet<String>();
-		for (String cat : categories) {
-			String[] tempGrandparent = wiki.getCategories(cat, false,
+		int[][] levels = ancestorLevels(wiki, internAll(categories), depth,
+				ignoreHidden);
+		Map<String, Integer> ancestors = new LinkedHashMap<String, Integer>();
+		for (int d = 0; d < levels.length; ++d)
+			for (int id : levels[d])
+				ancestors.put(categoryGraph.getName(id), d + 1);
+		return ancestors;
+	}
+
+	/**
+	 * Returns the ids of all ancestors of the categories up to the given depth.
+	 * The ancestors of each category are taken from the ancestor index of the
+	 * category graph, only categories missing there are walked up (see
+	 * ancestorLevels()).
+	 * 
+	 * @param wiki
+	 *            The wiki to connect to
+	 * @param categories
+	 *            The categories to start with (with "Category:" prefix)
+	 * @param depth
+	 *            The depth to be examined (depth == 1 means only the parents)
+	 * @param ignoreHidden
+	 *            If hidden categories should not be considered during search
+	 * @return The ids of the ancestors in the category graph
+	 * @throws IOException
+	 */
+	static BitSet ancestorIds(Wiki wiki, String[] categories, int depth,
+			boolean ignoreHidden) throws IOException {
+		CategoryGraph graph = categoryGraph;
+		int[] ids = internAll(categories);
+		// walk up from the categories missing in the ancestor index together,
+		// this fetches all parents needed to add them to the index
+		int[] missing = new int[ids.length];
+		int missingSize = 0;
+		for (int id : ids)
+			if (!graph.hasAncestors(id, depth, ignoreHidden))
+				missing[missingSize++] = id;
+		if (missingSize > 0)
+			ancestorLevels(wiki, Arrays.copyOf(missing, missingSize), depth,
 					ignoreHidden);
-			subSet.addAll(all_grand_parentCats(wiki, tempGrandparent,
-					depth - 1, ignoreHidden));
-			subSet.addAll(Arrays.asList(tempGrandparent));
+		BitSet ancestors = new BitSet();
+		for (int id : ids)
+			for (int ancestor : graph.getAncestors(id, depth, ignoreHidden))
+				ancestors.set(ancestor);
+		return ancestors;
+	}
+
+	/**
+	 * Walks up the category tree level by level. Each category is asked for
+	 * its parents only once, so loops in the tree do no harm, and the unknown
+	 * parents of a whole level are fetched with a single request.
+	 * 
+	 * @param wiki
+	 *            The wiki to connect to
+	 * @param categories
+	 *            The ids of the categories to start with
+	 * @param depth
+	 *            The depth to be examined (depth == 1 means only the parents)
+	 * @param ignoreHidden
+	 *            If hidden categories should not be considered during search
+	 * @return For each level the ids of the ancestors which were found first
+	 *         on it (the first level are the parents)
+	 * @throws IOException
+	 */
+	private static int[][] ancestorLevels(Wiki wiki, int[] categories,
+			int depth, boolean ignoreHidden) throws IOException {
+		CategoryGraph graph = categoryGraph;
+		List<int[]> levels = new ArrayList<int[]>();
+		BitSet found = new BitSet();
+		BitSet visited = new BitSet();
+		int[] level = new int[categories.length];
+		int levelSize = 0;
+		for (int id : categories)
+			if (!visited.get(id)) {
+				visited.set(id);
+				level[levelSize++] = id;
+			}
+		level = Arrays.copyOf(level, levelSize);
+		for (int d = 1; d <= depth && level.length > 0; ++d) {
+			fetchParents(wiki, level);
+			int[] next = new int[16];
+			int nextSize = 0;
+			int[] foundHere = new int[16];
+			int foundSize = 0;
+			for (int id : level) {
+				int[] parents = graph.getParents(id);
+				if (parents == null)
+					continue; // just expired
+				for (int parent : parents) {
+					if (ignoreHidden && graph.isHidden(parent))
+						continue;
+					if (!found.get(parent)) {
+						found.set(parent);
+						if (foundSize == foundHere.length)
+							foundHere = Arrays.copyOf(foundHere, 2 * foundSize);
+						foundHere[foundSize++] = parent;
+					}
+					if (!visited.get(parent)) {
+						visited.set(parent);
+						if (nextSize == next.length)
+							next = Arrays.copyOf(next, 2 * nextSize);
+						next[nextSize++] = parent;
+					}
+				}
+			}
+			levels.add(Arrays.copyOf(foundHere, foundSize));
+			level = Arrays.copyOf(next, nextSize);
+		}
+		return levels.toArray(new int[levels.size()][]);
+	}
+
+	/**
+	 * Returns the parents of the categories (see fetchParents())
+	 * 
+	 * @param wiki
+	 *            The wiki to connect to
+	 * @param categories
+	 *            The categories (with "Category:" prefix)
+	 * @param ignoreHidden
+	 *            If hidden categories should be skipped
+	 * @return The parents (with "Category:" prefix) of each category in the
+	 *         same order
+	 * @throws IOException
+	 */
+	private static String[][] getParentCategories(Wiki wiki,
+			String[] categories, boolean ignoreHidden) throws IOException {
+		CategoryGraph graph = categoryGraph;
+		int[] ids = internAll(categories);
+		fetchParents(wiki, ids);
+		String[][] parents = new String[ids.length][];
+		for (int c = 0; c < ids.length; ++c) {
+			List<String> names = new ArrayList<String>();
+			int[] parentIds = graph.getParents(ids[c]);
+			for (int parent : parentIds == null ? new int[0] : parentIds)
+				if (!ignoreHidden || !graph.isHidden(parent))
+					names.add(graph.getName(parent));
+			parents[c] = names.toArray(new String[names.size()]);
+		}
+		return parents;
+	}
+
+	/**
+	 * Makes sure the category graph knows the parents of the categories. They
+	 * are taken from the category graph store if possible; the others are
+	 * fetched with a single request and added to the store.
+	 * 
+	 * @param wiki
+	 *            The wiki to connect to
+	 * @param ids
+	 *            The ids of the categories in the category graph
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	private static void fetchParents(Wiki wiki, int[] ids) throws IOException {
+		CategoryGraph graph = categoryGraph;
+		CategoryGraphStore store = graphStore;
+		List<Integer> unknown = new ArrayList<Integer>();
+		for (int id : ids) {
+			if (graph.hasParents(id))
+				continue;
+			if (store != null) {
+				Map<String, Boolean> parents = new LinkedHashMap<String, Boolean>();
+				long fetched = store.getParents(graph.getName(id), parents);
+				if (fetched > 0) {
+					graph.setParents(id, parents, fetched);
+					// the store may keep parents longer than the graph
+					if (graph.hasParents(id))
+						continue;
+				}
+			}
+			unknown.add(id);
+		}
+		if (unknown.isEmpty())
+			return;
+		// the parents of all unknown categories with a single request
+		String[] names = new String[unknown.size()];
+		for (int u = 0; u < names.length; ++u)
+			names[u] = graph.getName(unknown.get(u));
+		Map<String, Object>[] fetched = wiki.getCategories(names);
+		for (int u = 0; u < names.length; ++u) {
+			Map<String, Boolean> parents = (Map<String, Boolean>) fetched[u]
+					.get("categories");
+			graph.setParents(unknown.get(u), parents);
+			if (store != null)
+				store.putParents(names[u], parents);
 		}
-		return subSet;
+	}
+
+	private static int[] internAll(String[] categories) {
+		int[] ids = new int[categories.length];
+		for (int c = 0; c < categories.length; ++c)
+			ids[c] = categoryGraph.intern(categories[c]);
+		return ids;
+	}
+
+	/**
+	 * Lets the cleanup ask the given store for the parents of categories
+	 * before asking the wiki
+	 * 
+	 * @param store
+	 *            The category graph store (null = always ask the wiki)
+	 */
+	public static void setCategoryGraphStore(CategoryGraphStore store) {
+		graphStore = store;
+	}
+
+	/**
+	 * @return The category graph store or null if none is used
+	 */
+	public static CategoryGraphStore getCategoryGraphStore() {
+		return graphStore;
+	}
+
+	/**
+	 * Replaces the category graph which holds the parents of all categories
+	 * seen so far
+	 * 
+	 * @param graph
+	 *            The new category graph
+	 */
+	public static void setCategoryGraph(CategoryGraph graph) {
+		categoryGraph = graph;
+	}
+
+	/**
+	 * @return The category graph which holds the parents of all categories
+	 *         seen so far
+	 */
+	public static CategoryGraph getCategoryGraph() {
+		return categoryGraph;
 	}
 
 	/**
@@ -859,19 +816,13 @@ public class WikiPage {
 	 * @return The altered text which lacks all comments
 	 */
 	public String getPlainTextNoComments() {
-		String returnString = "";
-		for (int u = 0; u < text.length; ++u) {
-			if (text[u].equals("true"))// || text[u].equals("<code>"))
-				returnString += text[++u];
-			else
-				++u;
-		}
-		return returnString;
+		return text.getEditableText();
 	}
 
 	/**
 	 * Write the text of the WikiPage to the wiki if any relevant changes were
-	 * made
+	 * made. If the revision of the text is known, the edit is made against it
+	 * without asking the wiki for the page info first.
 	 * 
 	 * @throws LoginException
 	 * @throws IOException
@@ -880,7 +831,8 @@ public class WikiPage {
 		if (this.getEditSummary().length() == 0)
 			return;
 		wiki.edit(this.getName(), this.getPlainText(),
-				"Bot: " + this.getEditSummary());
+				"Bot: " + this.getEditSummary(), wiki.isMarkMinor(),
+				wiki.isMarkBot(), -2, baseRevid, baseTime);
 		this.editSummary = "";
 		this.isCleanedup = false;
 	}
@@ -0,0 +1,263 @@
+package shared;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The wikitext of a WikiPage as a sequence of segments which may be edited
+ * and segments which must be preserved (pre, nowiki, comments, ...). The
+ * segments are changed in place; the whole text and the text without the
+ * preserved segments are only built when asked for and kept until the next
+ * change.
+ */
+final class WikiText {
+	// kind of the segments of the text which may be edited
+	static final int EDITABLE = -1;
+	// Segments of the text which must not be edited (prefix and suffix)
+	// TODO suppress the false positives by rewriting the code somehow.
+	// (Note the missing '>')
+	// preserve stolen from
+	// https://commons.wikimedia.org/w/index.php?diff=113112713
+	private static final String[][] PRESERVE = { { "<!--", "-->" },
+			{ "<nowiki>", "</nowiki>" }, { "<pre>", "</pre>" },
+			{ "<source>", "</source>" },
+			{ "<syntaxhighlight", "</syntaxhighlight>" },
+			{ "<templatedata", "</templatedata>" } };
+
+	private String[] segments;
+	// EDITABLE or the index in PRESERVE of each segment
+	private int[] kinds;
+	private int count;
+	private int length;
+	// the whole text and the editable text, null until built
+	private String plainText;
+	private String editableText;
+
+	/**
+	 * Splits the text into its segments
+	 *
+	 * @param text
+	 *            The wikitext
+	 */
+	WikiText(String text) {
+		setText(text);
+	}
+
+	/**
+	 * Replaces the whole text
+	 *
+	 * @param text
+	 *            The new wikitext
+	 */
+	void setText(String text) {
+		int[] tokens = tokenize(text);
+		count = tokens.length / 3;
+		segments = new String[count];
+		kinds = new int[count];
+		for (int s = 0; s < count; ++s) {
+			int offset = tokens[3 * s];
+			segments[s] = text.substring(offset, offset + tokens[3 * s + 1]);
+			kinds[s] = tokens[3 * s + 2];
+		}
+		length = text.length();
+		plainText = text;
+		editableText = null;
+	}
+
+	/**
+	 * @return The whole wikitext
+	 */
+	@Override
+	public String toString() {
+		if (plainText == null)
+			plainText = concat(false);
+		return plainText;
+	}
+
+	/**
+	 * @return The wikitext without the preserved segments
+	 */
+	String getEditableText() {
+		if (editableText == null)
+			editableText = concat(true);
+		return editableText;
+	}
+
+	private String concat(boolean editableOnly) {
+		StringBuilder builder = new StringBuilder(length);
+		for (int s = 0; s < count; ++s)
+			if (!editableOnly || kinds[s] == EDITABLE)
+				builder.append(segments[s]);
+		return builder.toString();
+	}
+
+	int getSegmentCount() {
+		return count;
+	}
+
+	boolean isEditable(int segment) {
+		return kinds[segment] == EDITABLE;
+	}
+
+	String getSegment(int segment) {
+		return segments[segment];
+	}
+
+	/**
+	 * Replaces the text of an editable segment. The new text is not tokenized
+	 * again, i.e. it stays editable as a whole.
+	 *
+	 * @param segment
+	 *            The index of the segment
+	 * @param text
+	 *            The new text of the segment
+	 */
+	void setSegment(int segment, String text) {
+		if (text.equals(segments[segment]))
+			return;
+		length += text.length() - segments[segment].length();
+		segments[segment] = text;
+		changed();
+	}
+
+	/**
+	 * Replace all matches of the pattern in the editable segments
+	 *
+	 * @param pattern
+	 *            The regex pattern
+	 * @param replacement
+	 *            All matches get substituted by this
+	 */
+	void replaceAll(Pattern pattern, String replacement) {
+		for (int s = 0; s < count; ++s) {
+			if (kinds[s] != EDITABLE)
+				continue;
+			Matcher m = pattern.matcher(segments[s]);
+			if (m.find())
+				setSegment(s, m.replaceAll(replacement));
+		}
+	}
+
+	/**
+	 * Appends text to the end of the wikitext. Only the last segment is
+	 * tokenized again, so the result equals tokenizing the whole new text.
+	 *
+	 * @param text
+	 *            The text to be appended
+	 */
+	void append(String text) {
+		if (text.length() == 0)
+			return;
+		String tail = segments[count - 1] + text;
+		int[] tokens = tokenize(tail);
+		int added = tokens.length / 3;
+		if (count - 1 + added > segments.length) {
+			segments = Arrays.copyOf(segments, 2 * (count - 1 + added));
+			kinds = Arrays.copyOf(kinds, segments.length);
+		}
+		--count;
+		for (int s = 0; s < added; ++s, ++count) {
+			int offset = tokens[3 * s];
+			segments[count] = tail.substring(offset, offset + tokens[3 * s + 1]);
+			kinds[count] = tokens[3 * s + 2];
+		}
+		String oldText = plainText;
+		length += text.length();
+		changed();
+		if (oldText != null)
+			plainText = oldText + text;
+	}
+
+	private void changed() {
+		plainText = null;
+		editableText = null;
+	}
+
+	/**
+	 * Splits the text in one pass into segments which can be edited and
+	 * segments which must be preserved. A preserved segment reaches from its
+	 * prefix to its suffix or, if the suffix is missing, to the end of the
+	 * text.
+	 *
+	 * @param text
+	 *            The text to be tokenized
+	 * @return Three ints per segment: the offset of the segment in the text,
+	 *         its length and its kind (EDITABLE or the index of its prefix in
+	 *         PRESERVE). The segments cover the whole text; empty editable
+	 *         segments are left out unless the text is empty.
+	 */
+	static int[] tokenize(String text) {
+		int start = 0; // start of the current editable segment
+		int[] tokens = new int[3 * 4];
+		int count = 0;
+		int length = text.length();
+		for (int i = text.indexOf('<'); i >= 0; i = text.indexOf('<', i + 1)) {
+			int kind = EDITABLE;
+			for (int e = 0; e < PRESERVE.length && kind == EDITABLE; ++e)
+				if (regionMatchesAscii(text, i, PRESERVE[e][0]))
+					kind = e;
+			if (kind == EDITABLE)
+				continue;
+			String suffix = PRESERVE[kind][1];
+			int end = indexOfAscii(text, suffix, i + PRESERVE[kind][0].length());
+			end = (end < 0) ? length : end + suffix.length();
+			if (count + 6 > tokens.length)
+				tokens = Arrays.copyOf(tokens, 2 * tokens.length);
+			if (i > start) {
+				tokens[count++] = start;
+				tokens[count++] = i - start;
+				tokens[count++] = EDITABLE;
+			}
+			tokens[count++] = i;
+			tokens[count++] = end - i;
+			tokens[count++] = kind;
+			start = end;
+			i = end - 1;
+		}
+		if (start < length || count == 0) {
+			if (count + 3 > tokens.length)
+				tokens = Arrays.copyOf(tokens, count + 3);
+			tokens[count++] = start;
+			tokens[count++] = length - start;
+			tokens[count++] = EDITABLE;
+		}
+		return Arrays.copyOf(tokens, count);
+	}
+
+	/**
+	 * Checks if the text contains the (lower case) token at the given offset,
+	 * ignoring the case of ASCII letters
+	 */
+	private static boolean regionMatchesAscii(String text, int offset,
+			String token) {
+		if (offset + token.length() > text.length())
+			return false;
+		for (int t = 0; t < token.length(); ++t) {
+			char c = text.charAt(offset + t);
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			if (c != token.charAt(t))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the (lower case) token in the text, ignoring the case of ASCII
+	 * letters
+	 *
+	 * @return The index of the first occurrence at or after fromIndex or -1
+	 */
+	private static int indexOfAscii(String text, String token, int fromIndex) {
+		char first = token.charAt(0);
+		int last = text.length() - token.length();
+		for (int i = fromIndex; i <= last; ++i) {
+			char c = text.charAt(i);
+			if ((c == first || (c >= 'A' && c <= 'Z' && c + ('a' - 'A') == first))
+					&& regionMatchesAscii(text, i, token))
+				return i;
+		}
+		return -1;
+	}
+}